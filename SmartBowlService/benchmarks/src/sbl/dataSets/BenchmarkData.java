@@ -0,0 +1,67 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Fills data sets of the given size with TestDataGenerator. Every fill uses
+// device IDs of its own, as the DAO is shared by all the benchmarks of a fork.
+final class BenchmarkData {
+
+    private static final AtomicInteger FILL_NUMBER = new AtomicInteger();
+
+    private BenchmarkData() {
+    }
+
+    static String newDeviceId( String prefix ) {
+        return prefix + "-" + FILL_NUMBER.incrementAndGet();
+    }
+
+    // Adds "entryCount" entries about a minute apart, ending now
+    static void fill( DataSetsDAO dataSetsDAO, String deviceId, int entryCount ) {
+        TestDataGenerator generator = new TestDataGenerator( dataSetsDAO );
+        generator.setNumSampleEntries( entryCount );
+        generator.setInitialAmount( 500.0 );
+        generator.fillDataSet( deviceId, Math.max( 24, entryCount/60 ) );
+    }
+
+    static String[] fill( DataSetsDAO dataSetsDAO, String prefix, int deviceCount, int entryCount ) {
+        String[] deviceIds = new String[deviceCount];
+        for ( int i=0; i<deviceCount; i++ ) {
+            deviceIds[i] = newDeviceId( prefix );
+            fill( dataSetsDAO, deviceIds[i], entryCount );
+        }
+        return deviceIds;
+    }
+
+    static void clear( DataSetsDAO dataSetsDAO, String... deviceIds ) {
+        for ( String deviceId : deviceIds ) {
+            dataSetsDAO.clearDataSet( deviceId );
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Reads that involve many devices: the daily consumption that the
+// configurations endpoint reports to every bowl, and the fleet-wide totals
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class FleetBenchmark {
+
+    private static final ZoneId[] ZONES = { ZoneId.of("UTC"), ZoneId.of("Europe/Warsaw") };
+
+    @Param({"1", "100", "10000"})
+    int deviceCount;
+
+    @Param({"1000"})
+    int entryCount;
+
+    private String[] deviceIds;
+
+    @Setup
+    public void setUp() {
+        deviceIds = BenchmarkData.fill( DataSetsDAO.getInstance(), "fleet", deviceCount, entryCount );
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkData.clear( DataSetsDAO.getInstance(), deviceIds );
+    }
+
+    // The usual case: the total of the day is kept up to date on ingest
+    @Benchmark
+    public DailyConsumption dailyConsumption() {
+        String deviceId = deviceIds[ ThreadLocalRandom.current().nextInt( deviceIds.length ) ];
+        return DataSetsDAO.getInstance().getDailyConsumption( deviceId, ZONES[0], Instant.now().getEpochSecond() );
+    }
+
+    // Alternating between two zones makes every call sum the day's entries
+    @Benchmark
+    public DailyConsumption dailyConsumptionSummed() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String deviceId = deviceIds[ random.nextInt( deviceIds.length ) ];
+        return DataSetsDAO.getInstance().getDailyConsumption( deviceId, ZONES[ random.nextInt( ZONES.length ) ], Instant.now().getEpochSecond() );
+    }
+
+    @Benchmark
+    public FleetTotals hourlyFleetTotals() {
+        long now = Instant.now().getEpochSecond();
+        return DataSetsDAO.getInstance().getFleetTotals( null, Resolution.HOUR, now - 24*3600, now );
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// DataSetsDAO.addToDataSet() from 1, 2, 4 and as many threads as there are
+// CPUs, each writing to a device of its own or all to the same one. With
+// per-device locks the throughput on own devices should grow with the
+// threads, up to the number of cores, while the shared device does not scale.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class IngestBenchmark {
+
+    @State(Scope.Thread)
+    public static class OwnDevice {
+
+        String deviceId;
+        long timestamp;
+
+        @Setup
+        public void setUp() {
+            deviceId = BenchmarkData.newDeviceId( "ingest" );
+            timestamp = Instant.now().getEpochSecond();
+        }
+
+        @TearDown
+        public void tearDown() {
+            BenchmarkData.clear( DataSetsDAO.getInstance(), deviceId );
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class SharedDevice {
+
+        String deviceId;
+        AtomicLong timestamp;
+
+        @Setup
+        public void setUp() {
+            deviceId = BenchmarkData.newDeviceId( "ingest-shared" );
+            timestamp = new AtomicLong( Instant.now().getEpochSecond() );
+        }
+
+        @TearDown
+        public void tearDown() {
+            BenchmarkData.clear( DataSetsDAO.getInstance(), deviceId );
+        }
+
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void addSingleThread( OwnDevice device ) {
+        DataSetsDAO.getInstance().addToDataSet( device.deviceId, device.timestamp++, 250.0, 1.25, 0.0, 0 );
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void addOwnDevices2( OwnDevice device ) {
+        DataSetsDAO.getInstance().addToDataSet( device.deviceId, device.timestamp++, 250.0, 1.25, 0.0, 0 );
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addOwnDevices4( OwnDevice device ) {
+        DataSetsDAO.getInstance().addToDataSet( device.deviceId, device.timestamp++, 250.0, 1.25, 0.0, 0 );
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void addOwnDevices( OwnDevice device ) {
+        DataSetsDAO.getInstance().addToDataSet( device.deviceId, device.timestamp++, 250.0, 1.25, 0.0, 0 );
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void addSharedDevice2( SharedDevice device ) {
+        DataSetsDAO.getInstance().addToDataSet( device.deviceId, device.timestamp.incrementAndGet(), 250.0, 1.25, 0.0, 0 );
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addSharedDevice4( SharedDevice device ) {
+        DataSetsDAO.getInstance().addToDataSet( device.deviceId, device.timestamp.incrementAndGet(), 250.0, 1.25, 0.0, 0 );
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void addSharedDevice( SharedDevice device ) {
+        DataSetsDAO.getInstance().addToDataSet( device.deviceId, device.timestamp.incrementAndGet(), 250.0, 1.25, 0.0, 0 );
+    }
+
+}
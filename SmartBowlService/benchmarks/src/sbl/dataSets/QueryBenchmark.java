@@ -0,0 +1,140 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Reads of a single data set: the raw entries by count and by time range, the
+// per-hour aggregates and the CSV and binary renderings
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Dsbl.dataSets.maxEntryCount=1000000"})
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    int entryCount;
+
+    private String deviceId;
+    private long now;
+
+    @Setup
+    public void setUp() {
+        deviceId = BenchmarkData.newDeviceId( "query" );
+        BenchmarkData.fill( DataSetsDAO.getInstance(), deviceId, entryCount );
+        now = Instant.now().getEpochSecond();
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkData.clear( DataSetsDAO.getInstance(), deviceId );
+    }
+
+    @Benchmark
+    public List<DataSetEntry> rawEntriesByCount() {
+        return DataSetsDAO.getInstance().getRawEntries( deviceId, 1000 );
+    }
+
+    @Benchmark
+    public List<DataSetEntry> rawEntriesOfLastDay() {
+        return DataSetsDAO.getInstance().getRawEntries( deviceId, now - 24*3600, now + 1 );
+    }
+
+    @Benchmark
+    public List<DataSetEntry> perHourEntries() {
+        return DataSetsDAO.getInstance().getPerHourEntries( deviceId, 24 );
+    }
+
+    @Benchmark
+    public String rawEntriesCsv() {
+        return DataSetsDAO.getInstance().getRawEntriesCSV( deviceId, 0 );
+    }
+
+    @Benchmark
+    public String perHourEntriesCsv() {
+        return DataSetsDAO.getInstance().getPerHourEntriesCSV( deviceId, 24 );
+    }
+
+    // What GET /dataSets/{device} does for the CSV and binary representations
+    @Benchmark
+    public void streamedCsv( Blackhole blackhole ) throws IOException {
+        CsvWriter writer = new CsvWriter( new BlackholeOutputStream( blackhole ) );
+        writer.writeHeader();
+        writer.writeRows( DataSetsDAO.getInstance().getLastRawSeries( deviceId, 0 ) );
+        writer.flush();
+    }
+
+    @Benchmark
+    public void streamedBinary( Blackhole blackhole ) throws IOException {
+        DataSeries entries = DataSetsDAO.getInstance().getLastRawSeries( deviceId, 0 );
+        BinaryWriter writer = new BinaryWriter( new BlackholeOutputStream( blackhole ) );
+        writer.writeHeader( entries.size() );
+        writer.writeEntries( entries );
+        writer.flush();
+    }
+
+    private static final class BlackholeOutputStream extends OutputStream {
+
+        private final Blackhole blackhole;
+
+        BlackholeOutputStream( Blackhole blackhole ) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write( int b ) {
+            blackhole.consume( b );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) {
+            blackhole.consume( b );
+            blackhole.consume( len );
+        }
+
+    }
+
+}
@@ -0,0 +1,302 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package sbl.loadTest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import sbl.metrics.LatencyHistogram;
+
+// Simulates a fleet of bowls and dashboard viewers against a running
+// SmartBowlService and reports the latency percentiles and throughput of every
+// endpoint. Every bowl uploads a reading and then checks in for its
+// configuration every checkInSeconds, give or take the jitter, like the
+// firmware does. A reconnect storm makes all of them do that at once, like
+// after a Wi-Fi outage. Dashboard viewers poll the last 24 hours of a random
+// bowl and reload its page every tenth time.
+//
+// Latencies count from when a request was due, not from when it was sent, so
+// a service that stalls the requests queued behind a slow one is not let off
+// (coordinated omission). The p99 from the actual send is reported next to
+// them; a big difference means requests waited for a client thread or for
+// the previous request of their bowl or dashboard.
+//
+// Usage: java sbl.loadTest.LoadTest [--option=value ...], with the options
+// (and defaults) url (http://localhost:8080/SmartBowlService), devices (1000),
+// checkInSeconds (1800), jitter (0.2), stormEverySeconds (0, no storms),
+// dashboards (10), dashboardIntervalSeconds (5), durationSeconds (300),
+// clientThreads (64) and reportSeconds (10)
+public final class LoadTest {
+
+    private static final int TIMEOUT_MILLIS = 30000;
+    private static final long LATE_MICROS = 1000000;
+
+    private enum Endpoint {
+
+        UPLOAD("POST /dataSets/{device}"),
+        CHECK_IN("GET /configurations/{device}"),
+        DATA_SET("GET /dataSets/{device}?hoursBack=24"),
+        DASHBOARD("GET /dashboards/{device}");
+
+        final String label;
+        final LatencyHistogram latencies = new LatencyHistogram();  // From when the request was due
+        final LatencyHistogram sendLatencies = new LatencyHistogram();  // From when it was sent
+        final AtomicLong errors = new AtomicLong();
+
+        Endpoint( String label ) {
+            this.label = label;
+        }
+
+    }
+
+    private final String baseUrl;
+    private final int deviceCount;
+    private final long checkInMicros;
+    private final double jitter;
+    private final long stormEverySeconds;
+    private final int dashboardCount;
+    private final long dashboardIntervalMicros;
+    private final long durationSeconds;
+    private final int clientThreads;
+    private final long reportSeconds;
+    private final AtomicLong lateCycles = new AtomicLong();
+    private volatile boolean stopped;
+    private long startNanos;
+
+    private LoadTest( Map<String, String> options ) {
+        baseUrl = option( options, "url", "http://localhost:8080/SmartBowlService" ).replaceAll( "/+$", "" );
+        deviceCount = Integer.parseInt( option( options, "devices", "1000" ) );
+        checkInMicros = (long) (Double.parseDouble( option( options, "checkInSeconds", "1800" ) )*1e6);
+        jitter = Double.parseDouble( option( options, "jitter", "0.2" ) );
+        stormEverySeconds = Long.parseLong( option( options, "stormEverySeconds", "0" ) );
+        dashboardCount = Integer.parseInt( option( options, "dashboards", "10" ) );
+        dashboardIntervalMicros = (long) (Double.parseDouble( option( options, "dashboardIntervalSeconds", "5" ) )*1e6);
+        durationSeconds = Long.parseLong( option( options, "durationSeconds", "300" ) );
+        clientThreads = Integer.parseInt( option( options, "clientThreads", "64" ) );
+        reportSeconds = Long.parseLong( option( options, "reportSeconds", "10" ) );
+        if ( !options.isEmpty() ) {
+            throw new IllegalArgumentException( "Unknown options: " + options.keySet() );
+        }
+    }
+
+    public static void main( String[] args ) throws InterruptedException {
+        Map <String, String> options = new HashMap<>();
+        for ( String arg : args ) {
+            int equals = arg.indexOf( '=' );
+            if ( !arg.startsWith( "--" ) || equals < 0 ) {
+                throw new IllegalArgumentException( "Expected --option=value, got " + arg );
+            }
+            options.put( arg.substring( 2, equals ), arg.substring( equals+1 ) );
+        }
+        new LoadTest( options ).run();
+    }
+
+    private void run() throws InterruptedException {
+        // Lets every client thread keep its connection alive
+        System.setProperty( "http.maxConnections", Integer.toString( clientThreads + dashboardCount ) );
+        System.out.printf( Locale.ROOT, "%d bowls checking in every %.0f s (+/- %.0f%%), %d dashboards, for %d s against %s%n",
+            deviceCount, checkInMicros/1e6, jitter*100, dashboardCount, durationSeconds, baseUrl );
+
+        ScheduledThreadPoolExecutor bowls = new ScheduledThreadPoolExecutor( clientThreads );
+        ExecutorService dashboards = Executors.newFixedThreadPool( Math.max( 1, dashboardCount ) );
+        ScheduledExecutorService control = Executors.newSingleThreadScheduledExecutor();
+        startNanos = System.nanoTime();
+
+        // The fleet is in a steady state, so the first check-ins are spread
+        // over a whole interval
+        for ( int i=0; i<deviceCount; i++ ) {
+            long delay = ThreadLocalRandom.current().nextLong( Math.max( 1, checkInMicros ) );
+            scheduleCycle( bowls, i, delay );
+        }
+        if ( stormEverySeconds > 0 ) {
+            control.scheduleAtFixedRate( () -> {
+                System.out.println( "Reconnect storm" );
+                long dueNanos = System.nanoTime();
+                for ( int i=0; i<deviceCount; i++ ) {
+                    int device = i;
+                    bowls.execute( () -> runCycle( device, dueNanos ) );
+                }
+            }, stormEverySeconds, stormEverySeconds, TimeUnit.SECONDS );
+        }
+        for ( int i=0; i<dashboardCount; i++ ) {
+            dashboards.execute( this::runDashboard );
+        }
+        control.scheduleAtFixedRate( this::printProgress, reportSeconds, reportSeconds, TimeUnit.SECONDS );
+
+        Thread.sleep( TimeUnit.SECONDS.toMillis( durationSeconds ) );
+        stopped = true;
+        control.shutdownNow();
+        bowls.shutdownNow();
+        dashboards.shutdownNow();
+        bowls.awaitTermination( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS );
+        dashboards.awaitTermination( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS );
+        printSummary();
+    }
+
+    private void scheduleCycle( ScheduledExecutorService bowls, int device, long delayMicros ) {
+        if ( stopped ) return;
+        long dueNanos = System.nanoTime() + delayMicros*1000;
+        bowls.schedule( () -> {
+            // The latencies include the delay, but a pool that starts cycles
+            // late may be the bottleneck rather than the service, so that is
+            // reported
+            if ( (System.nanoTime() - dueNanos)/1000 > LATE_MICROS ) {
+                lateCycles.incrementAndGet();
+            }
+            runCycle( device, dueNanos );
+            scheduleCycle( bowls, device, jittered( checkInMicros ) );
+        }, delayMicros, TimeUnit.MICROSECONDS );
+    }
+
+    // One wake-up of a bowl: upload a reading, then fetch the configuration
+    // as soon as the upload is done
+    private void runCycle( int device, long dueNanos ) {
+        if ( stopped ) return;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String reading = String.format( Locale.ROOT, "%.2f,%.2f,%.2f,%d", 20 + random.nextDouble()*480, random.nextDouble()*10, 0.0, 0 );
+        send( Endpoint.UPLOAD, "POST", "/dataSets/" + deviceId( device ), reading.getBytes( StandardCharsets.US_ASCII ), dueNanos );
+        send( Endpoint.CHECK_IN, "GET", "/configurations/" + deviceId( device ), null, System.nanoTime() );
+    }
+
+    // Polls on a fixed schedule, so a slow response delays the next poll and
+    // that delay counts towards its latency
+    private void runDashboard() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long dueNanos = System.nanoTime();
+        for ( int round=0; !stopped; round++ ) {
+            String device = deviceId( random.nextInt( Math.max( 1, deviceCount ) ) );
+            long dataSetDueNanos = dueNanos;
+            if ( round % 10 == 0 ) {
+                send( Endpoint.DASHBOARD, "GET", "/dashboards/" + device, null, dueNanos );
+                dataSetDueNanos = System.nanoTime();
+            }
+            send( Endpoint.DATA_SET, "GET", "/dataSets/" + device + "?hoursBack=24", null, dataSetDueNanos );
+            dueNanos += jittered( dashboardIntervalMicros )*1000;
+            try {
+                TimeUnit.NANOSECONDS.sleep( dueNanos - System.nanoTime() );
+            } catch ( InterruptedException ex ) {
+                return;
+            }
+        }
+    }
+
+    private void send( Endpoint endpoint, String method, String path, byte[] body, long dueNanos ) {
+        long start = System.nanoTime();
+        boolean ok = false;
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL( baseUrl + path ).openConnection();
+            connection.setConnectTimeout( TIMEOUT_MILLIS );
+            connection.setReadTimeout( TIMEOUT_MILLIS );
+            connection.setRequestMethod( method );
+            if ( body != null ) {
+                connection.setDoOutput( true );
+                connection.setRequestProperty( "Content-Type", "text/plain" );
+                connection.setFixedLengthStreamingMode( body.length );
+                try ( OutputStream out = connection.getOutputStream() ) {
+                    out.write( body );
+                }
+            }
+            int status = connection.getResponseCode();
+            // Reading the whole response lets the connection be reused
+            drain( status >= 400 ? connection.getErrorStream() : connection.getInputStream() );
+            ok = status < 400;
+        } catch ( IOException ex ) {
+            if ( connection != null ) {
+                try {
+                    drain( connection.getErrorStream() );
+                } catch ( IOException ignored ) {
+                }
+            }
+        }
+        if ( stopped ) return;  // Cut short by the end of the run
+        long end = System.nanoTime();
+        endpoint.latencies.record( end - dueNanos );
+        endpoint.sendLatencies.record( end - start );
+        if ( !ok ) {
+            endpoint.errors.incrementAndGet();
+        }
+    }
+
+    private long jittered( long micros ) {
+        double factor = 1 + jitter*(2*ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max( 1, (long) (micros*factor) );
+    }
+
+    private static String deviceId( int device ) {
+        return "load-" + device;
+    }
+
+    private static void drain( InputStream in ) throws IOException {
+        if ( in == null ) return;
+        try ( InputStream stream = in ) {
+            byte[] buffer = new byte[8192];
+            while ( stream.read( buffer ) >= 0 ) {
+            }
+        }
+    }
+
+    private void printProgress() {
+        StringBuilder b = new StringBuilder( String.format( Locale.ROOT, "%5d s", TimeUnit.NANOSECONDS.toSeconds( System.nanoTime() - startNanos ) ) );
+        for ( Endpoint endpoint : Endpoint.values() ) {
+            b.append( String.format( Locale.ROOT, " | %s %d (p99 %.1f ms)", endpoint.name().toLowerCase(), endpoint.latencies.getCount(), endpoint.latencies.getPercentile( 0.99 )/1e6 ) );
+        }
+        System.out.println( b );
+    }
+
+    private void printSummary() {
+        double seconds = (System.nanoTime() - startNanos)/1e9;
+        System.out.println();
+        System.out.printf( Locale.ROOT, "%-40s %9s %7s %9s %9s %9s %9s %9s %12s%n", "endpoint", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "sent p99 ms" );
+        for ( Endpoint endpoint : Endpoint.values() ) {
+            LatencyHistogram h = endpoint.latencies;
+            System.out.printf( Locale.ROOT, "%-40s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %12.2f%n", endpoint.label, h.getCount(), endpoint.errors.get(), h.getCount()/seconds,
+                h.getPercentile( 0.5 )/1e6, h.getPercentile( 0.99 )/1e6, h.getPercentile( 0.999 )/1e6, h.getMaxNanos()/1e6, endpoint.sendLatencies.getPercentile( 0.99 )/1e6 );
+        }
+        if ( lateCycles.get() > 0 ) {
+            System.out.println( lateCycles.get() + " check-ins started more than a second late; if the client is busy rather than the service, raise --clientThreads" );
+        }
+    }
+
+    private static String option( Map<String, String> options, String name, String defaultValue ) {
+        String value = options.remove( name );
+        return value != null ? value : defaultValue;
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.metrics;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ResourceInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// What MetricsFilter adds to every request, also with all the CPUs recording
+// into the same endpoint. The "filter" variants run both of its filter methods
+// on proxies with just the context methods it calls: storing and reading back
+// the boxed start time, looking up the resource method's endpoint and
+// recording into it.
+// The others isolate the recording of the status and latency, which should
+// stay under 100 ns; the "recordRequest" ones add the two clock reads, whose
+// cost depends on the clock source of the machine.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Endpoint {
+
+        final EndpointMetrics metrics = Metrics.getInstance().endpoint( "MetricsBenchmark.record" );
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class Filter {
+
+        final MetricsFilter filter = new MetricsFilter();
+
+        // There is no container to inject the resource info
+        @Setup
+        public void setUp() throws ReflectiveOperationException {
+            Method method = MetricsResource.class.getMethod( "getMetrics", AsyncResponse.class );
+            Field field = MetricsFilter.class.getDeclaredField( "resourceInfo" );
+            field.setAccessible( true );
+            field.set( filter, proxy( ResourceInfo.class, (name, args) -> {
+                if ( name.equals( "getResourceMethod" ) ) return method;
+                throw new UnsupportedOperationException( name );
+            } ) );
+        }
+
+    }
+
+    // Every request has its own contexts
+    @State(Scope.Thread)
+    public static class Contexts {
+
+        final Map <String,Object> properties = new HashMap<>();
+        final ContainerRequestContext request = proxy( ContainerRequestContext.class, (name, args) -> {
+            switch ( name ) {
+                case "getProperty": return properties.get( (String) args[0] );
+                case "setProperty": properties.put( (String) args[0], args[1] ); return null;
+                default: throw new UnsupportedOperationException( name );
+            }
+        } );
+        final ContainerResponseContext response = proxy( ContainerResponseContext.class, (name, args) -> {
+            if ( name.equals( "getStatus" ) ) return 200;
+            throw new UnsupportedOperationException( name );
+        } );
+
+    }
+
+    @State(Scope.Thread)
+    public static class Latencies {
+
+        // Spread over the microseconds to tens of milliseconds that requests
+        // usually take, so the histogram buckets vary like in production
+        long next = 1;
+
+        long nextLatency() {
+            next = next*6364136223846793005L + 1442695040888963407L;
+            return 1000 + (next >>> 40);
+        }
+
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void filter( Filter filter, Contexts contexts ) throws IOException {
+        filter.filter.filter( contexts.request );
+        filter.filter.filter( contexts.request, contexts.response );
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void filterShared( Filter filter, Contexts contexts ) throws IOException {
+        filter.filter.filter( contexts.request );
+        filter.filter.filter( contexts.request, contexts.response );
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void record( Endpoint endpoint, Latencies latencies ) {
+        endpoint.metrics.record( 200, latencies.nextLatency() );
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void recordShared( Endpoint endpoint, Latencies latencies ) {
+        endpoint.metrics.record( 200, latencies.nextLatency() );
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void recordRequest( Endpoint endpoint ) {
+        long start = System.nanoTime();
+        endpoint.metrics.record( 200, System.nanoTime() - start );
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void recordRequestShared( Endpoint endpoint ) {
+        long start = System.nanoTime();
+        endpoint.metrics.record( 200, System.nanoTime() - start );
+    }
+
+    private interface Handler {
+
+        Object invoke( String methodName, Object[] args );
+
+    }
+
+    private static <T> T proxy( Class <T> type, Handler handler ) {
+        return type.cast( Proxy.newProxyInstance( type.getClassLoader(), new Class<?>[] { type }, 
+            (proxy, method, args) -> handler.invoke( method.getName(), args ) ) );
+    }
+
+}
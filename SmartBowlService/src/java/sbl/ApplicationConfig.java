@@ -45,8 +45,11 @@ public class ApplicationConfig extends Application {
         resources.add(sbl.dashboards.DashboardPageResource.class);
         resources.add(sbl.dataSets.DataSetCollectionResource.class);
         resources.add(sbl.dataSets.DataSetResource.class);
+        resources.add(sbl.dataSets.FleetResource.class);
         resources.add(sbl.dataSets.TestDataSetResource.class);
         resources.add(sbl.devices.DeviceResource.class);
+        resources.add(sbl.metrics.MetricsFilter.class);
+        resources.add(sbl.metrics.MetricsResource.class);
     }
     
 }
@@ -0,0 +1,77 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl;
+
+import java.util.Date;
+import java.util.UUID;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+
+// Builds the validators for conditional GETs. Entity tags are made of version
+// numbers that only live in memory, so they are prefixed with an ID of the
+// running instance, so that tags handed out before a restart never match.
+public final class CacheValidators {
+
+    private static final String INSTANCE_ID = Long.toString( UUID.randomUUID().getMostSignificantBits() & Long.MAX_VALUE, 36 );
+    private static final CacheControl NO_CACHE = new CacheControl();
+
+    static {
+        // Clients may keep the responses, but have to revalidate them every time
+        NO_CACHE.setNoCache( true );
+    }
+
+    private CacheValidators() {
+    }
+
+    public static EntityTag entityTag( long... parts ) {
+        StringBuilder b = new StringBuilder( INSTANCE_ID );
+        for ( long part : parts ) {
+            b.append( '-' ).append( Long.toString( part, 36 ) );
+        }
+        return new EntityTag( b.toString() );
+    }
+
+    // Returns a "304 Not Modified" response if the client's copy is still valid
+    // or null if the full response has to be produced
+    public static Response notModified( Request request, long lastModifiedMillis, EntityTag tag ) {
+        Response.ResponseBuilder builder = request.evaluatePreconditions( toHttpDate( lastModifiedMillis ), tag );
+        if ( builder == null ) return null;
+        return builder.tag( tag ).lastModified( toHttpDate( lastModifiedMillis ) ).cacheControl( NO_CACHE ).build();
+    }
+
+    public static Response.ResponseBuilder ok( Object entity, long lastModifiedMillis, EntityTag tag ) {
+        return Response.ok( entity ).tag( tag ).lastModified( toHttpDate( lastModifiedMillis ) ).cacheControl( NO_CACHE );
+    }
+
+    // HTTP dates have a resolution of one second
+    private static Date toHttpDate( long millis ) {
+        return new Date( millis - Math.floorMod( millis, 1000L ) );
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+// Helpers for serving content that is compressed up front
+public final class ContentEncoding {
+
+    public static final String GZIP = "gzip";
+
+    private ContentEncoding() {
+    }
+
+    // Returns true if the value of an Accept-Encoding header allows gzip
+    public static boolean acceptsGzip( String acceptEncoding ) {
+        if ( acceptEncoding == null ) return false;
+        for ( String item : acceptEncoding.split(",") ) {
+            String[] parts = item.split(";");
+            String coding = parts[0].trim();
+            if ( coding.equalsIgnoreCase( GZIP ) || coding.equals("*") ) {
+                return !hasZeroQuality( parts );
+            }
+        }
+        return false;
+    }
+
+    public static byte[] gzip( byte[] content ) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( content.length/4 + 64 );
+        try ( GZIPOutputStream gzipOut = new GZIPOutputStream( out ) ) {
+            gzipOut.write( content );
+        } catch ( IOException ex ) {
+            throw new UncheckedIOException( ex );
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean hasZeroQuality( String[] parts ) {
+        for ( int i=1; i<parts.length; i++ ) {
+            String parameter = parts[i].trim();
+            if ( parameter.startsWith("q=") ) {
+                try {
+                    return Double.parseDouble( parameter.substring(2) ) == 0;
+                } catch ( NumberFormatException ex ) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+}
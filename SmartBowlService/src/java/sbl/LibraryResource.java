@@ -26,25 +26,127 @@ SOFTWARE.
 
 package sbl;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
 import javax.servlet.ServletContext;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
-import javax.ws.rs.Produces;
+import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 
+// Serves the files in /lib from memory. Every file is read once, together
+// with a gzipped copy if that is smaller, and tagged with a checksum of its
+// content, so the tags stay valid across restarts.
 @Path("lib/{filename}")
 public class LibraryResource {
 
+    private static final int MAX_AGE_SECONDS = Integer.getInteger( "sbl.lib.maxAgeSeconds", 86400 );
+    private static final MediaType DEFAULT_TYPE = MediaType.APPLICATION_OCTET_STREAM_TYPE;
+    private static final Map <String, MediaType> CONTENT_TYPES = new HashMap<>();
+    private static final CacheControl CACHE_CONTROL = new CacheControl();
+    private static final ConcurrentMap <String, Asset> ASSETS = new ConcurrentHashMap<>();
+
+    static {
+        CONTENT_TYPES.put( "js", new MediaType( "application", "javascript", "UTF-8" ) );
+        CONTENT_TYPES.put( "css", new MediaType( "text", "css", "UTF-8" ) );
+        CONTENT_TYPES.put( "html", MediaType.TEXT_HTML_TYPE.withCharset( "UTF-8" ) );
+        CONTENT_TYPES.put( "json", MediaType.APPLICATION_JSON_TYPE.withCharset( "UTF-8" ) );
+        CONTENT_TYPES.put( "txt", MediaType.TEXT_PLAIN_TYPE.withCharset( "UTF-8" ) );
+        CONTENT_TYPES.put( "svg", MediaType.APPLICATION_SVG_XML_TYPE );
+        CONTENT_TYPES.put( "png", new MediaType( "image", "png" ) );
+        CACHE_CONTROL.setMaxAge( MAX_AGE_SECONDS );
+    }
+
     @Context
     ServletContext context;
 
     @GET
-    @Produces(MediaType.TEXT_PLAIN)
-    public InputStream getLibraryFile( @PathParam("filename") String filename ) {
-        return context.getResourceAsStream("/lib/"+filename);
+    public Response getLibraryFile( 
+            @PathParam("filename") String filename,
+            @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+            @Context Request request
+        ) throws IOException {
+        Asset asset = getAsset( filename );
+        if ( asset == null ) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        boolean gzip = asset.gzipped != null && ContentEncoding.acceptsGzip( acceptEncoding );
+        EntityTag tag = gzip ? asset.gzippedTag : asset.tag;
+        Response.ResponseBuilder builder = request.evaluatePreconditions( tag );
+        if ( builder == null ) {
+            builder = Response.ok( gzip ? asset.gzipped : asset.content, asset.type );
+            if ( gzip ) {
+                builder.header( HttpHeaders.CONTENT_ENCODING, ContentEncoding.GZIP );
+            }
+        }
+        return builder.tag( tag ).cacheControl( CACHE_CONTROL ).header( HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING ).build();
+    }
+
+    // Returns null if there is no such file
+    private Asset getAsset( String filename ) throws IOException {
+        Asset asset = ASSETS.get( filename );
+        if ( asset != null ) {
+            return asset;
+        }
+        if ( filename.startsWith(".") || filename.indexOf('/') >= 0 || filename.indexOf('\\') >= 0 ) {
+            return null;
+        }
+        try ( InputStream in = context.getResourceAsStream( "/lib/" + filename ) ) {
+            if ( in == null ) {
+                return null;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ( ( count = in.read( buffer ) ) >= 0 ) {
+                out.write( buffer, 0, count );
+            }
+            asset = new Asset( out.toByteArray(), getContentType( filename ) );
+        }
+        // Only files that exist get here, so the cache is bounded by the content of /lib
+        Asset existing = ASSETS.putIfAbsent( filename, asset );
+        return existing != null ? existing : asset;
+    }
+
+    private static MediaType getContentType( String filename ) {
+        int dot = filename.lastIndexOf('.');
+        MediaType type = dot >= 0 ? CONTENT_TYPES.get( filename.substring( dot+1 ).toLowerCase() ) : null;
+        return type != null ? type : DEFAULT_TYPE;
+    }
+
+    private static final class Asset {
+
+        final byte[] content;
+        final byte[] gzipped;  // Null if compression does not pay off
+        final MediaType type;
+        final EntityTag tag;
+        final EntityTag gzippedTag;
+
+        Asset( byte[] content, MediaType type ) {
+            this.content = content;
+            this.type = type;
+            byte[] compressed = ContentEncoding.gzip( content );
+            this.gzipped = compressed.length < content.length ? compressed : null;
+            CRC32 crc = new CRC32();
+            crc.update( content );
+            String checksum = Long.toString( content.length, 36 ) + "-" + Long.toString( crc.getValue(), 36 );
+            this.tag = new EntityTag( checksum );
+            this.gzippedTag = new EntityTag( checksum + "-gz" );
+        }
+
     }
 
 }
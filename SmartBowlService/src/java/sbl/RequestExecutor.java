@@ -0,0 +1,114 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+
+// Runs request handlers off the container's threads. Device traffic (uploads
+// and configuration check-ins) and dashboard traffic (data set queries, pages,
+// device management) get separate pools, so slow dashboard clients and long
+// CSV renders cannot hold up the bowls. With -Dsbl.syncRequests=true the
+// handlers run on the container's threads as before.
+public final class RequestExecutor {
+
+    private static final boolean SYNC_REQUESTS = Boolean.getBoolean( "sbl.syncRequests" );
+    private static final long REQUEST_TIMEOUT_SECONDS = Long.getLong( "sbl.requestTimeoutSeconds", 30 );
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    public static final RequestExecutor DEVICE = new RequestExecutor( "sbl-device", 
+        Integer.getInteger( "sbl.deviceThreads", Math.max( 4, CPU_COUNT*2 ) ), 
+        Integer.getInteger( "sbl.deviceQueueCapacity", 10000 ) );
+    public static final RequestExecutor DASHBOARD = new RequestExecutor( "sbl-dashboard", 
+        Integer.getInteger( "sbl.dashboardThreads", Math.max( 2, CPU_COUNT/2 ) ), 
+        Integer.getInteger( "sbl.dashboardQueueCapacity", 1000 ) );
+
+    public static void shutdownAll() {
+        DEVICE.shutdown();
+        DASHBOARD.shutdown();
+    }
+    
+    
+    private final ThreadPoolExecutor executor;
+
+    private RequestExecutor( String name, int threadCount, int queueCapacity ) {
+        if ( SYNC_REQUESTS ) {
+            executor = null;
+            return;
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor( threadCount, threadCount, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>( queueCapacity ), r -> {
+            Thread t = new Thread( r, name + "-" + threadNumber.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        } );
+        executor.allowCoreThreadTimeOut( true );
+    }
+
+    // Resumes the response with whatever the task returns or throws. When the
+    // pool is saturated or the task does not finish in time, the client gets
+    // "503 Service Unavailable" and may retry.
+    public void submit( AsyncResponse response, Callable<?> task ) {
+        if ( executor == null ) {
+            run( response, task );
+            return;
+        }
+        response.setTimeout( REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS );
+        response.setTimeoutHandler( r -> r.resume( serviceUnavailable() ) );
+        try {
+            executor.execute( () -> run( response, task ) );
+        } catch ( RejectedExecutionException ex ) {
+            response.resume( serviceUnavailable() );
+        }
+    }
+
+    private void shutdown() {
+        if ( executor != null ) {
+            executor.shutdown();
+        }
+    }
+
+    private static void run( AsyncResponse response, Callable<?> task ) {
+        try {
+            response.resume( task.call() );
+        } catch ( Throwable t ) {
+            response.resume( t );
+        }
+    }
+
+    private static Response serviceUnavailable() {
+        return Response.status( Response.Status.SERVICE_UNAVAILABLE ).header( HttpHeaders.RETRY_AFTER, 1 ).build();
+    }
+
+}
@@ -26,19 +26,26 @@ SOFTWARE.
 
 package sbl.configurations;
 
+import java.time.Instant;
 import java.time.ZoneId;
-import java.time.ZonedDateTime;
-import java.time.temporal.ChronoUnit;
-import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.Produces;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
-import sbl.dataSets.DataSetEntry;
+import sbl.CacheValidators;
+import sbl.RequestExecutor;
+import sbl.dataSets.DailyConsumption;
 import sbl.dataSets.DataSetsDAO;
 import sbl.devices.Device;
 import sbl.devices.DeviceDAO;
@@ -46,6 +53,7 @@ import sbl.devices.DeviceDAO;
 @Path("configurations")
 public class ConfigurationsResource {
 
+    private static final ConcurrentMap <String, ZoneId> ZONES = new ConcurrentHashMap<>();
 
     public ConfigurationsResource() {
     }
@@ -53,29 +61,64 @@ public class ConfigurationsResource {
     @GET
     @Produces(MediaType.TEXT_PLAIN)
     @Path("{device}")
-    public Response getConfiguraion( 
+    public void getConfiguraion( 
         @PathParam("device") String deviceId,
-        @DefaultValue("rationLeft,secondsLeft") @QueryParam("fields") String fields
+        @DefaultValue("rationLeft,secondsLeft") @QueryParam("fields") String fields,
+        @Context Request request,
+        @Suspended AsyncResponse response
     ) {                
+        RequestExecutor.DEVICE.submit( response, () -> getConfiguration(deviceId, fields, request) );
+    }
+    
+    private Response getConfiguration( String deviceId, String fields, Request request ) {
+        // A device usually asks right after uploading a reading, which has to be
+        // accounted for. Versions are read before the data they describe, see
+        // DeviceResource. Data sets are kept under lower-case IDs, see
+        // DataSetResource.
+        String dataSetId = deviceId.toLowerCase();
+        DataSetsDAO.getInstance().awaitPendingEntries( dataSetId );
+        long deviceVersion = DeviceDAO.getInstance().getVersion( deviceId );
+        long dataVersion = DataSetsDAO.getInstance().getVersion( dataSetId );
         Device device = DeviceDAO.getInstance().getDevice( deviceId );
         if ( device == null ) {
             return Response.status(Response.Status.NOT_FOUND).build();
         }
         
-        ZoneId deviceTZ = ZoneId.of( device.getTimeZone() );
-        ZonedDateTime now = ZonedDateTime.now( deviceTZ );
-        ZonedDateTime startOfDay = now.withHour(0).withMinute(0).withSecond(0).withNano(0);
-        ZonedDateTime endOfDay = startOfDay.plusHours(24);
-        List<DataSetEntry> rawEntries = DataSetsDAO.getInstance().getRawEntries( deviceId, startOfDay );
-        int consumedSoFar = calculateTotalConsumption(rawEntries);
+        ZoneId deviceTZ = ZONES.computeIfAbsent( device.getTimeZone(), ZoneId::of );
+        long now = Instant.now().getEpochSecond();
+        DailyConsumption today = DataSetsDAO.getInstance().getDailyConsumption( dataSetId, deviceTZ, now );
+        
+        // The ration left only changes with the device, its data set and the
+        // day, but the seconds left change all the time, so responses that
+        // include them are never validated
+        EntityTag tag = null;
+        long lastModified = 0;
+        if ( !containsField( fields, "secondsLeft" ) ) {
+            tag = CacheValidators.entityTag( deviceVersion, dataVersion, today.getDate().toEpochDay() );
+            lastModified = Math.max( today.getStartOfDay()*1000, 
+                Math.max( DeviceDAO.getInstance().getLastModified( deviceId ), DataSetsDAO.getInstance().getLastModified( dataSetId ) ) );
+            Response notModified = CacheValidators.notModified( request, lastModified, tag );
+            if ( notModified != null ) {
+                return notModified;
+            }
+        }
+        
+        int consumedSoFar = (int) Math.round( today.getAmountConsumed() );
         int dailyRation = device.getDailyRation();
         int rationLeft = Math.max( 0, dailyRation-consumedSoFar );
-        int secondsLeft = (int) now.until(endOfDay, ChronoUnit.SECONDS);
-        return Response.ok( formatResponse(fields, rationLeft, secondsLeft) ).build();
+        int secondsLeft = (int) (today.getEndOfDay() - now);
+        String body = formatResponse(fields, rationLeft, secondsLeft);
+        if ( tag != null ) {
+            return CacheValidators.ok( body, lastModified, tag ).build();
+        }
+        return Response.ok( body ).build();
     }
     
-    private int calculateTotalConsumption( List <DataSetEntry> entries ) {
-        return (int) Math.round(entries.stream().map( DataSetEntry::getAmountConsumed ).reduce( 0.0, (a, b) -> a + b ));
+    private boolean containsField( String fields, String name ) {
+        for ( String field : fields.split(",") ) {
+            if ( field.equalsIgnoreCase(name) ) return true;
+        }
+        return false;
     }
     
     private String formatResponse( String fields, int rationLeft, int secondsLeft  ) {
@@ -28,49 +28,177 @@ package sbl.dashboards;
 
 import com.github.mustachejava.DefaultMustacheFactory;
 import com.github.mustachejava.Mustache;
-import com.github.mustachejava.MustacheFactory;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.zip.CRC32;
 import javax.servlet.ServletContext;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
-import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import sbl.CacheValidators;
+import sbl.ContentEncoding;
+import sbl.RequestExecutor;
+import sbl.metrics.FlightRecorderEvents;
 
+// The template is compiled once and every device's page is rendered once, then
+// served from memory as is or gzipped. With -Dsbl.dashboards.reloadTemplate=true
+// the template is recompiled (and the pages rendered again) whenever the file
+// changes, which is handy while working on it.
 @Path("dashboards/{dataSet}")
 public class DashboardPageResource {
 
+    private static final String TEMPLATE_PATH = "/WEB-INF/dashboard.html";
+    private static final boolean RELOAD_TEMPLATE = Boolean.getBoolean( "sbl.dashboards.reloadTemplate" );
+    private static final int MAX_CACHED_PAGES = Integer.getInteger( "sbl.dashboards.maxCachedPages", 1000 );
+    private static final MediaType TEXT_HTML_UTF8 = MediaType.TEXT_HTML_TYPE.withCharset( "UTF-8" );
+    
+    private static final Object TEMPLATE_LOCK = new Object();
+    private static volatile Template template;
+    // Any path is accepted as a device ID, so the cache is bounded and drops
+    // the least recently served page first. Guarded by itself.
+    private static final Map <String, RenderedPage> PAGES = new LinkedHashMap<String, RenderedPage>( 16, 0.75f, true ) {
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String, RenderedPage> eldest ) {
+            return size() > MAX_CACHED_PAGES;
+        }
+    };
+
     @Context
     ServletContext context;
 
     @GET
     @Produces(MediaType.TEXT_HTML)
-    public StreamingOutput getDashboardPage(@PathParam("dataSet") String id) throws Exception {
-        return new StreamingOutput() {
-            public void write(OutputStream output) throws IOException, WebApplicationException {                
-                Map <String,String> dashboardProperties = new HashMap<>();
-                dashboardProperties.put("id", id);
-                
-                Writer writer = new OutputStreamWriter( output );
-                MustacheFactory mf = new DefaultMustacheFactory();
-                InputStream templateStream = context.getResourceAsStream("/WEB-INF/dashboard.html");
-                Mustache mustache = mf.compile( new InputStreamReader( templateStream ), "dashboard" );
-                mustache.execute(writer, dashboardProperties);
-                writer.flush();
+    public void getDashboardPage(
+            @PathParam("dataSet") String id, 
+            @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding, 
+            @Context Request request, 
+            @Suspended AsyncResponse response
+        ) {
+        RequestExecutor.DASHBOARD.submit( response, () -> getDashboardPage(id, acceptEncoding, request) );
+    }
+    
+    private Response getDashboardPage( String id, String acceptEncoding, Request request ) throws IOException {
+        RenderedPage page = getPage( id );
+        boolean gzip = ContentEncoding.acceptsGzip( acceptEncoding );
+        EntityTag tag = gzip ? page.gzippedTag : page.tag;
+        Response notModified = CacheValidators.notModified( request, page.renderedMillis, tag );
+        if ( notModified != null ) {
+            return Response.fromResponse( notModified ).header( HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING ).build();
+        }
+        Response.ResponseBuilder builder = CacheValidators.ok( gzip ? page.gzipped : page.content, page.renderedMillis, tag )
+            .type( TEXT_HTML_UTF8 )
+            .header( HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING );
+        if ( gzip ) {
+            builder.header( HttpHeaders.CONTENT_ENCODING, ContentEncoding.GZIP );
+        }
+        return builder.build();
+    }
+    
+    private RenderedPage getPage( String id ) throws IOException {
+        Template t = getTemplate();
+        RenderedPage page;
+        synchronized ( PAGES ) {
+            page = PAGES.get( id );
+        }
+        if ( page != null && page.templateVersion == t.version ) {
+            return page;
+        }
+        FlightRecorderEvents.PageRenderEvent event = FlightRecorderEvents.getInstance().beginPageRender();
+        StringWriter writer = new StringWriter();
+        t.mustache.execute( writer, Collections.singletonMap( "id", id ) );
+        page = new RenderedPage( t.version, writer.toString().getBytes( StandardCharsets.UTF_8 ) );
+        event.commit( id, t.version, page.content.length, page.gzipped.length );
+        synchronized ( PAGES ) {
+            PAGES.put( id, page );
+        }
+        return page;
+    }
+    
+    private Template getTemplate() throws IOException {
+        Template t = template;
+        if ( t == null || ( RELOAD_TEMPLATE && t.lastModified != getTemplateLastModified() ) ) {
+            synchronized ( TEMPLATE_LOCK ) {
+                t = template;
+                long lastModified = getTemplateLastModified();
+                if ( t == null || ( RELOAD_TEMPLATE && t.lastModified != lastModified ) ) {
+                    FlightRecorderEvents.TemplateCompileEvent event = FlightRecorderEvents.getInstance().beginTemplateCompile();
+                    try ( InputStream in = context.getResourceAsStream( TEMPLATE_PATH ) ) {
+                        if ( in == null ) {
+                            throw new IOException( "Missing " + TEMPLATE_PATH );
+                        }
+                        Reader reader = new InputStreamReader( in, StandardCharsets.UTF_8 );
+                        Mustache mustache = new DefaultMustacheFactory().compile( reader, "dashboard" );
+                        t = new Template( mustache, lastModified, t != null ? t.version+1 : 0 );
+                    }
+                    event.commit( t.version );
+                    template = t;
+                    synchronized ( PAGES ) {
+                        PAGES.clear();
+                    }
+                }
             }
-        };
+        }
+        return t;
+    }
+    
+    // Returns "0" if the template is not a plain file, e.g. in a packed WAR
+    private long getTemplateLastModified() {
+        String path = context.getRealPath( TEMPLATE_PATH );
+        return path != null ? new File( path ).lastModified() : 0;
+    }
+    
+    private static final class Template {
+        
+        final Mustache mustache;
+        final long lastModified;
+        final long version;
+
+        Template( Mustache mustache, long lastModified, long version ) {
+            this.mustache = mustache;
+            this.lastModified = lastModified;
+            this.version = version;
+        }
+        
+    }
+    
+    private static final class RenderedPage {
+        
+        final long templateVersion;
+        final long renderedMillis = System.currentTimeMillis();
+        final byte[] content;
+        final byte[] gzipped;
+        final EntityTag tag;
+        final EntityTag gzippedTag;
+
+        RenderedPage( long templateVersion, byte[] content ) {
+            this.templateVersion = templateVersion;
+            this.content = content;
+            this.gzipped = ContentEncoding.gzip( content );
+            CRC32 crc = new CRC32();
+            crc.update( content );
+            // The two encodings are different representations, so they need different tags
+            this.tag = CacheValidators.entityTag( templateVersion, crc.getValue() );
+            this.gzippedTag = CacheValidators.entityTag( templateVersion, crc.getValue(), 1 );
+        }
+        
     }
     
 }
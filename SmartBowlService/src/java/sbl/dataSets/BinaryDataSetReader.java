@@ -0,0 +1,149 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reference decoder of the binary data set representation (see BinaryWriter
+// for the layout). Entries are read one at a time with next() and the getters,
+// or all at once with readAll().
+public final class BinaryDataSetReader {
+
+    private final InputStream in;
+    private final int count;
+    private int index;
+    private long timestamp;
+    private double amountRemaining;
+    private double amountConsumed;
+    private double amountAdded;
+    private int numRefills;
+
+    public BinaryDataSetReader( InputStream in ) throws IOException {
+        this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream( in );
+        int magic = 0;
+        for ( int i=0; i<4; i++ ) {
+            magic = (magic << 8) | readByte();
+        }
+        if ( magic != BinaryWriter.MAGIC ) {
+            throw new IOException( "Not a binary data set" );
+        }
+        int version = readByte();
+        if ( version != BinaryWriter.VERSION ) {
+            throw new IOException( "Unsupported binary data set version: " + version );
+        }
+        long count = readVarint();
+        if ( count < 0 || count > Integer.MAX_VALUE ) {
+            throw new IOException( "Invalid entry count: " + count );
+        }
+        this.count = (int) count;
+    }
+
+    public static List<DataSetEntry> readAll( InputStream in ) throws IOException {
+        BinaryDataSetReader reader = new BinaryDataSetReader( in );
+        List <DataSetEntry> entries = new ArrayList<>( Math.min( reader.getCount(), 1 << 16 ) );
+        while ( reader.next() ) {
+            entries.add( reader.getEntry() );
+        }
+        return entries;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    // Moves to the next entry; returns false when all of them have been read
+    public boolean next() throws IOException {
+        if ( index == count ) return false;
+        timestamp += readSigned();
+        amountRemaining = fromFixedPoint( readSigned() );
+        amountConsumed = fromFixedPoint( readSigned() );
+        amountAdded = fromFixedPoint( readSigned() );
+        numRefills = (int) readSigned();
+        index++;
+        return true;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public double getAmountRemaining() {
+        return amountRemaining;
+    }
+
+    public double getAmountConsumed() {
+        return amountConsumed;
+    }
+
+    public double getAmountAdded() {
+        return amountAdded;
+    }
+
+    public int getNumRefills() {
+        return numRefills;
+    }
+
+    public DataSetEntry getEntry() {
+        return new DataSetEntry( timestamp, amountRemaining, amountConsumed, amountAdded, numRefills );
+    }
+
+    private static double fromFixedPoint( long hundredths ) {
+        if ( hundredths == BinaryWriter.NAN ) return Double.NaN;
+        if ( hundredths == BinaryWriter.POSITIVE_INFINITY ) return Double.POSITIVE_INFINITY;
+        if ( hundredths == BinaryWriter.NEGATIVE_INFINITY ) return Double.NEGATIVE_INFINITY;
+        return hundredths / 100.0;
+    }
+
+    private long readSigned() throws IOException {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for ( int shift=0; shift<64; shift+=7 ) {
+            int b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ( (b & 0x80) == 0 ) return value;
+        }
+        throw new IOException( "Malformed varint" );
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if ( b < 0 ) {
+            throw new EOFException( "Unexpected end of binary data set" );
+        }
+        return b;
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+// Writes data set entries in a compact binary form, as an alternative to CSV
+// for clients that fetch a lot of data. Amounts are rounded to hundredths
+// exactly like in the CSV, so both representations carry the same values.
+//
+// Layout:
+//   header: magic "SBLB", format version (1 byte), entry count (varint)
+//   then for each entry, all as zigzag varints: timestamp in seconds as the
+//   difference to the previous entry (to 0 for the first one), amount remaining,
+//   consumed and added in hundredths, number of refills
+//
+// Amounts too large for a long in hundredths are saturated; NaN and the
+// infinities are stored as Long.MIN_VALUE, Long.MAX_VALUE and -Long.MAX_VALUE.
+// See BinaryDataSetReader for the decoder.
+final class BinaryWriter {
+
+    static final int MAGIC = 0x53424c42;  // "SBLB"
+    static final int VERSION = 1;
+    static final long NAN = Long.MIN_VALUE;
+    static final long POSITIVE_INFINITY = Long.MAX_VALUE;
+    static final long NEGATIVE_INFINITY = -Long.MAX_VALUE;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_ENTRY_LENGTH = 5*10;
+    private static final BigInteger MAX_HUNDREDTHS = BigInteger.valueOf( Long.MAX_VALUE - 1 );
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private long flushedBytes;
+    private long previousTimestamp;
+
+    BinaryWriter( OutputStream out ) {
+        this.out = out;
+    }
+
+    void writeHeader( int count ) {
+        buffer[position++] = (byte) (MAGIC >>> 24);
+        buffer[position++] = (byte) (MAGIC >>> 16);
+        buffer[position++] = (byte) (MAGIC >>> 8);
+        buffer[position++] = (byte) MAGIC;
+        buffer[position++] = (byte) VERSION;
+        writeVarint( count );
+    }
+
+    void writeEntries( DataSeries entries ) throws IOException {
+        for ( int i=0; i<entries.size(); i++ ) {
+            writeEntry( entries.getTimestamp(i), entries.getAmountRemaining(i), entries.getAmountConsumed(i), entries.getAmountAdded(i), entries.getNumRefills(i) );
+        }
+    }
+
+    void writeEntry( long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int numRefills ) throws IOException {
+        if ( position > BUFFER_SIZE - MAX_ENTRY_LENGTH ) {
+            flushBuffer();
+        }
+        writeSigned( timestamp - previousTimestamp );
+        writeSigned( toFixedPoint( amountRemaining ) );
+        writeSigned( toFixedPoint( amountConsumed ) );
+        writeSigned( toFixedPoint( amountAdded ) );
+        writeSigned( numRefills );
+        previousTimestamp = timestamp;
+    }
+
+    void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    long getBytesWritten() {
+        return flushedBytes + position;
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write( buffer, 0, position );
+        flushedBytes += position;
+        position = 0;
+    }
+
+    static long toFixedPoint( double value ) {
+        if ( Double.isNaN( value ) ) return NAN;
+        if ( Double.isInfinite( value ) ) return value > 0 ? POSITIVE_INFINITY : NEGATIVE_INFINITY;
+        double abs = Math.abs( value );
+        long hundredths;
+        if ( abs < CsvWriter.MAX_FAST_AMOUNT ) {
+            hundredths = CsvWriter.toHundredths( abs );
+        } else {
+            hundredths = new BigDecimal( Double.toString( abs ) ).setScale( 2, RoundingMode.HALF_UP ).unscaledValue().min( MAX_HUNDREDTHS ).longValue();
+        }
+        return value < 0 ? -hundredths : hundredths;
+    }
+
+    // Zigzag encoding keeps small negative numbers short
+    private void writeSigned( long value ) {
+        writeVarint( (value << 1) ^ (value >> 63) );
+    }
+
+    private void writeVarint( long value ) {
+        while ( (value & ~0x7fL) != 0 ) {
+            buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+}
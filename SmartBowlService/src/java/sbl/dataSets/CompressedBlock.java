@@ -0,0 +1,372 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.util.Arrays;
+
+// An immutable, compressed run of raw entries, see RawSeries. It uses the
+// encoding of Facebook's Gorilla time series database: timestamps are stored
+// as the difference between consecutive intervals and amounts as the XOR with
+// the previous value of the same column, both with variable-length codes.
+// Regular upload intervals and slowly changing amounts make most of those codes
+// only a few bits long. Refill counts and entry numbers are stored as a single
+// bit as long as they stay the same or go up by one, respectively.
+final class CompressedBlock {
+
+    private final long[] words;
+    private final int count;
+    private final long firstTimestamp;
+    private final long lastTimestamp;
+    private final long maxSequence;
+
+    private CompressedBlock( long[] words, int count, long firstTimestamp, long lastTimestamp, long maxSequence ) {
+        this.words = words;
+        this.count = count;
+        this.firstTimestamp = firstTimestamp;
+        this.lastTimestamp = lastTimestamp;
+        this.maxSequence = maxSequence;
+    }
+
+    // Compresses all the entries of the given series, which must not be empty
+    static CompressedBlock of( DataSeries entries ) {
+        BitOutput out = new BitOutput( entries.size() );
+        XorEncoder remaining = new XorEncoder( out );
+        XorEncoder consumed = new XorEncoder( out );
+        XorEncoder added = new XorEncoder( out );
+        long maxSequence = 0;
+        long previousTimestamp = 0;
+        long previousDelta = 0;
+        int previousRefills = 0;
+        long previousSequence = 0;
+        for ( int i=0; i<entries.size(); i++ ) {
+            long timestamp = entries.getTimestamp(i);
+            int refills = entries.getNumRefills(i);
+            long sequence = entries.getSequence(i);
+            if ( i == 0 ) {
+                out.write( timestamp, 64 );
+                out.write( refills, 32 );
+                out.write( sequence, 64 );
+            } else {
+                long delta = timestamp - previousTimestamp;
+                writeDeltaOfDelta( out, delta - previousDelta );
+                previousDelta = delta;
+                if ( refills == previousRefills ) {
+                    out.write( 0, 1 );
+                } else {
+                    out.write( 1, 1 );
+                    out.write( refills, 32 );
+                }
+                if ( sequence == previousSequence + 1 ) {
+                    out.write( 0, 1 );
+                } else {
+                    out.write( 1, 1 );
+                    out.write( sequence, 64 );
+                }
+            }
+            remaining.write( entries.getAmountRemaining(i) );
+            consumed.write( entries.getAmountConsumed(i) );
+            added.write( entries.getAmountAdded(i) );
+            previousTimestamp = timestamp;
+            previousRefills = refills;
+            previousSequence = sequence;
+            maxSequence = Math.max( maxSequence, sequence );
+        }
+        return new CompressedBlock( out.toArray(), entries.size(), entries.getTimestamp(0), entries.getTimestamp( entries.size()-1 ), maxSequence );
+    }
+
+    int size() {
+        return count;
+    }
+
+    long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    long getMaxSequence() {
+        return maxSequence;
+    }
+
+    int getSizeInBytes() {
+        return words.length*8;
+    }
+
+    // Decodes the entries one at a time, in the order they were stored
+    Reader reader() {
+        return new Reader( this );
+    }
+
+    // The four classes of delta-of-deltas used by Gorilla, which cover the
+    // usual jitter of a regular interval in seconds, and a 64 bit escape
+    private static void writeDeltaOfDelta( BitOutput out, long value ) {
+        if ( value == 0 ) {
+            out.write( 0, 1 );
+        } else if ( value >= -64 && value < 64 ) {
+            out.write( 0b10, 2 );
+            out.write( value, 7 );
+        } else if ( value >= -256 && value < 256 ) {
+            out.write( 0b110, 3 );
+            out.write( value, 9 );
+        } else if ( value >= -2048 && value < 2048 ) {
+            out.write( 0b1110, 4 );
+            out.write( value, 12 );
+        } else {
+            out.write( 0b1111, 4 );
+            out.write( value, 64 );
+        }
+    }
+
+    private static long readDeltaOfDelta( BitInput in ) {
+        if ( in.read( 1 ) == 0 ) return 0;
+        if ( in.read( 1 ) == 0 ) return in.readSigned( 7 );
+        if ( in.read( 1 ) == 0 ) return in.readSigned( 9 );
+        if ( in.read( 1 ) == 0 ) return in.readSigned( 12 );
+        return in.read( 64 );
+    }
+
+    static final class Reader {
+
+        private final BitInput in;
+        private final XorDecoder remaining;
+        private final XorDecoder consumed;
+        private final XorDecoder added;
+        private int left;
+        private boolean first = true;
+        private long timestamp;
+        private long delta;
+        private int numRefills;
+        private long sequence;
+
+        private Reader( CompressedBlock block ) {
+            this.in = new BitInput( block.words );
+            this.remaining = new XorDecoder( in );
+            this.consumed = new XorDecoder( in );
+            this.added = new XorDecoder( in );
+            this.left = block.count;
+        }
+
+        // Moves to the next entry; returns false when all of them have been read
+        boolean next() {
+            if ( left == 0 ) return false;
+            left--;
+            if ( first ) {
+                first = false;
+                timestamp = in.read( 64 );
+                numRefills = (int) in.read( 32 );
+                sequence = in.read( 64 );
+            } else {
+                delta += readDeltaOfDelta( in );
+                timestamp += delta;
+                if ( in.read( 1 ) != 0 ) {
+                    numRefills = (int) in.read( 32 );
+                }
+                sequence = in.read( 1 ) == 0 ? sequence + 1 : in.read( 64 );
+            }
+            remaining.read();
+            consumed.read();
+            added.read();
+            return true;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        double getAmountRemaining() {
+            return remaining.value();
+        }
+
+        double getAmountConsumed() {
+            return consumed.value();
+        }
+
+        double getAmountAdded() {
+            return added.value();
+        }
+
+        int getNumRefills() {
+            return numRefills;
+        }
+
+        long getSequence() {
+            return sequence;
+        }
+
+        // Appends the current entry to the given series
+        void copyTo( DataSeries dest ) {
+            dest.add( timestamp, remaining.value(), consumed.value(), added.value(), numRefills, sequence );
+        }
+
+    }
+
+    // A value equal to the previous one takes a single bit. Otherwise only the
+    // bits that differ are stored, reusing the previous window of leading and
+    // trailing zeros when they fit in it.
+    private static final class XorEncoder {
+
+        private final BitOutput out;
+        private boolean first = true;
+        private long previous;
+        private int leadingZeros = -1;
+        private int trailingZeros;
+
+        XorEncoder( BitOutput out ) {
+            this.out = out;
+        }
+
+        void write( double value ) {
+            long bits = Double.doubleToRawLongBits( value );
+            if ( first ) {
+                first = false;
+                out.write( bits, 64 );
+            } else {
+                long xor = bits ^ previous;
+                if ( xor == 0 ) {
+                    out.write( 0, 1 );
+                } else {
+                    int leading = Math.min( Long.numberOfLeadingZeros( xor ), 31 );
+                    int trailing = Long.numberOfTrailingZeros( xor );
+                    if ( leadingZeros >= 0 && leading >= leadingZeros && trailing >= trailingZeros ) {
+                        out.write( 0b10, 2 );
+                        out.write( xor >>> trailingZeros, 64 - leadingZeros - trailingZeros );
+                    } else {
+                        int length = 64 - leading - trailing;
+                        out.write( 0b11, 2 );
+                        out.write( leading, 5 );
+                        out.write( length - 1, 6 );
+                        out.write( xor >>> trailing, length );
+                        leadingZeros = leading;
+                        trailingZeros = trailing;
+                    }
+                }
+            }
+            previous = bits;
+        }
+
+    }
+
+    private static final class XorDecoder {
+
+        private final BitInput in;
+        private boolean first = true;
+        private long bits;
+        private int leadingZeros;
+        private int trailingZeros;
+
+        XorDecoder( BitInput in ) {
+            this.in = in;
+        }
+
+        void read() {
+            if ( first ) {
+                first = false;
+                bits = in.read( 64 );
+            } else if ( in.read( 1 ) != 0 ) {
+                if ( in.read( 1 ) != 0 ) {
+                    leadingZeros = (int) in.read( 5 );
+                    trailingZeros = 64 - leadingZeros - ( (int) in.read( 6 ) + 1 );
+                }
+                bits ^= in.read( 64 - leadingZeros - trailingZeros ) << trailingZeros;
+            }
+        }
+
+        double value() {
+            return Double.longBitsToDouble( bits );
+        }
+
+    }
+
+    private static final class BitOutput {
+
+        private long[] words;
+        private long position;  // In bits
+
+        BitOutput( int entryCount ) {
+            // Enough for a couple of bytes per entry; grows if needed
+            words = new long[ Math.max( 8, entryCount/4 ) ];
+        }
+
+        // Writes the lowest "length" bits of the value, 1 to 64 of them
+        void write( long value, int length ) {
+            if ( length < 64 ) {
+                value &= (1L << length) - 1;
+            }
+            int index = (int) (position >>> 6);
+            if ( index + 1 >= words.length ) {
+                words = Arrays.copyOf( words, words.length*2 );
+            }
+            int free = 64 - (int) (position & 63);
+            if ( length <= free ) {
+                words[index] |= value << (free - length);
+            } else {
+                words[index] |= value >>> (length - free);
+                words[index+1] |= value << (64 - (length - free));
+            }
+            position += length;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf( words, (int) ((position + 63) >>> 6) );
+        }
+
+    }
+
+    private static final class BitInput {
+
+        private final long[] words;
+        private long position;  // In bits
+
+        BitInput( long[] words ) {
+            this.words = words;
+        }
+
+        // Reads the next "length" bits, 1 to 64 of them
+        long read( int length ) {
+            int index = (int) (position >>> 6);
+            int used = (int) (position & 63);
+            int available = 64 - used;
+            long value;
+            if ( length <= available ) {
+                value = (words[index] << used) >>> (64 - length);
+            } else {
+                int rest = length - available;
+                value = ((words[index] << used) >>> used) << rest | words[index+1] >>> (64 - rest);
+            }
+            position += length;
+            return value;
+        }
+
+        long readSigned( int length ) {
+            return read( length ) << (64 - length) >> (64 - length);
+        }
+
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+// Writes data set entries as CSV straight into a byte buffer that is flushed
+// to the output whenever it fills up. Timestamps are formatted as ISO instants
+// and amounts as fixed-point numbers with two decimals, the same as
+// DateTimeFormatter.ISO_INSTANT and String.format("%.2f") would produce.
+final class CsvWriter {
+
+    static final String HEADER = "time,amount,consumed,added,refills";
+    static final String TOTALS_HEADER = "time,consumed,added,refills,devices";
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_ROW_LENGTH = 128;
+    static final double MAX_FAST_AMOUNT = 1e9;   // Keeps the scaled value well within double precision
+    private static final long MAX_FORMATTED_SECOND = 253402300799L;  // 9999-12-31T23:59:59Z
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private long flushedBytes;
+
+    CsvWriter( OutputStream out ) {
+        this.out = out;
+    }
+
+    void writeHeader() throws IOException {
+        writeHeader( HEADER );
+    }
+
+    void writeHeader( String header ) throws IOException {
+        if ( position > BUFFER_SIZE - MAX_ROW_LENGTH ) {
+            flushBuffer();
+        }
+        writeAscii( header );
+        buffer[position++] = '\n';
+    }
+
+    void writeRows( DataSeries entries ) throws IOException {
+        for ( int i=0; i<entries.size(); i++ ) {
+            writeRow( entries.getTimestamp(i), entries.getAmountRemaining(i), entries.getAmountConsumed(i), entries.getAmountAdded(i), entries.getNumRefills(i) );
+        }
+    }
+
+    // Writes the rows with the device ID in front, under "device," + HEADER
+    void writeRows( String deviceId, DataSeries entries ) throws IOException {
+        byte[] prefix = (deviceId + ",").getBytes( StandardCharsets.UTF_8 );
+        for ( int i=0; i<entries.size(); i++ ) {
+            writeBytes( prefix );
+            writeRow( entries.getTimestamp(i), entries.getAmountRemaining(i), entries.getAmountConsumed(i), entries.getAmountAdded(i), entries.getNumRefills(i) );
+        }
+    }
+
+    void writeRow( long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int numRefills ) throws IOException {
+        if ( position > BUFFER_SIZE - MAX_ROW_LENGTH ) {
+            flushBuffer();
+        }
+        writeInstant( timestamp );
+        buffer[position++] = ',';
+        writeFixedPoint( amountRemaining );
+        buffer[position++] = ',';
+        writeFixedPoint( amountConsumed );
+        buffer[position++] = ',';
+        writeFixedPoint( amountAdded );
+        buffer[position++] = ',';
+        writeLong( numRefills );
+        buffer[position++] = '\n';
+    }
+
+    // Writes the buckets that any device reported in, under TOTALS_HEADER
+    void writeTotals( FleetTotals totals ) throws IOException {
+        for ( int i=0; i<totals.getBucketCount(); i++ ) {
+            if ( totals.getDeviceCount(i) == 0 ) continue;
+            if ( position > BUFFER_SIZE - MAX_ROW_LENGTH ) {
+                flushBuffer();
+            }
+            writeInstant( totals.getTimestamp(i) );
+            buffer[position++] = ',';
+            writeFixedPoint( totals.getAmountConsumed(i) );
+            buffer[position++] = ',';
+            writeFixedPoint( totals.getAmountAdded(i) );
+            buffer[position++] = ',';
+            writeLong( totals.getNumRefills(i) );
+            buffer[position++] = ',';
+            writeLong( totals.getDeviceCount(i) );
+            buffer[position++] = '\n';
+        }
+    }
+
+    void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    long getBytesWritten() {
+        return flushedBytes + position;
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write( buffer, 0, position );
+        flushedBytes += position;
+        position = 0;
+    }
+
+    private void writeInstant( long epochSecond ) throws IOException {
+        if ( epochSecond < 0 || epochSecond > MAX_FORMATTED_SECOND ) {
+            writeAscii( DateTimeFormatter.ISO_INSTANT.format( Instant.ofEpochSecond( epochSecond ) ) );
+            return;
+        }
+        long days = epochSecond / 86400;
+        int secondOfDay = (int) (epochSecond % 86400);
+
+        // Civil date from days since 1970-01-01 (proleptic Gregorian calendar)
+        long z = days + 719468;
+        long era = z / 146097;
+        long dayOfEra = z - era*146097;
+        long yearOfEra = (dayOfEra - dayOfEra/1460 + dayOfEra/36524 - dayOfEra/146096) / 365;
+        long dayOfYear = dayOfEra - (365*yearOfEra + yearOfEra/4 - yearOfEra/100);
+        long mp = (5*dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153*mp + 2)/5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yearOfEra + era*400 + (month <= 2 ? 1 : 0));
+
+        writeDigits( year, 4 );
+        buffer[position++] = '-';
+        writeDigits( month, 2 );
+        buffer[position++] = '-';
+        writeDigits( day, 2 );
+        buffer[position++] = 'T';
+        writeDigits( secondOfDay / 3600, 2 );
+        buffer[position++] = ':';
+        writeDigits( secondOfDay / 60 % 60, 2 );
+        buffer[position++] = ':';
+        writeDigits( secondOfDay % 60, 2 );
+        buffer[position++] = 'Z';
+    }
+
+    private void writeFixedPoint( double value ) throws IOException {
+        if ( Double.isNaN( value ) || Double.isInfinite( value ) || Math.abs( value ) >= MAX_FAST_AMOUNT ) {
+            writeAscii( String.format( Locale.ROOT, "%.2f", value ) );
+            return;
+        }
+        long hundredths = toHundredths( Math.abs( value ) );
+        if ( value < 0 ) {
+            buffer[position++] = '-';
+        }
+        writeLong( hundredths / 100 );
+        buffer[position++] = '.';
+        writeDigits( (int) (hundredths % 100), 2 );
+    }
+
+    // Rounds a non-negative amount below MAX_FAST_AMOUNT to hundredths the
+    // same way as String.format("%.2f") does
+    static long toHundredths( double value ) {
+        double scaled = value*100;
+        long hundredths = Math.round( scaled );
+        if ( Math.abs( scaled - Math.floor( scaled ) - 0.5 ) < 1e-6 ) {
+            // Close to a tie; round the shortest decimal representation half-up
+            // like Formatter does, rather than the binary value
+            hundredths = new BigDecimal( Double.toString( value ) ).setScale( 2, RoundingMode.HALF_UP ).unscaledValue().longValue();
+        }
+        return hundredths;
+    }
+
+    private void writeLong( long value ) throws IOException {
+        if ( value < 0 ) {
+            if ( value == Long.MIN_VALUE ) {
+                writeAscii( Long.toString( value ) );
+                return;
+            }
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int start = position;
+        do {
+            buffer[position++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while ( value > 0 );
+        // Digits were written least significant first
+        for ( int i=start, j=position-1; i<j; i++, j-- ) {
+            byte b = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = b;
+        }
+    }
+
+    private void writeDigits( int value, int width ) {
+        for ( int i=position+width-1; i>=position; i-- ) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += width;
+    }
+
+    private void writeBytes( byte[] bytes ) throws IOException {
+        if ( position + bytes.length > BUFFER_SIZE - MAX_ROW_LENGTH ) {
+            flushBuffer();
+            if ( bytes.length > BUFFER_SIZE - MAX_ROW_LENGTH ) {
+                out.write( bytes );
+                flushedBytes += bytes.length;
+                return;
+            }
+        }
+        System.arraycopy( bytes, 0, buffer, position, bytes.length );
+        position += bytes.length;
+    }
+
+    // Used for the rare values that do not fit the fast paths. These may be
+    // longer than a whole row (an amount of 1e300 has over 300 digits), so
+    // like writeBytes it keeps MAX_ROW_LENGTH free behind them for the rest
+    // of the row.
+    private void writeAscii( String s ) throws IOException {
+        if ( position + s.length() > BUFFER_SIZE - MAX_ROW_LENGTH ) {
+            flushBuffer();
+            if ( s.length() > BUFFER_SIZE - MAX_ROW_LENGTH ) {
+                out.write( s.getBytes( StandardCharsets.US_ASCII ) );
+                flushedBytes += s.length();
+                return;
+            }
+        }
+        for ( int i=0; i<s.length(); i++ ) {
+            buffer[position++] = (byte) s.charAt(i);
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+// Amount consumed during one calendar day in a given time zone. The day is
+// the [startOfDay, endOfDay) range of epoch seconds, which is 23 or 25 hours
+// long on the days of DST transitions.
+public final class DailyConsumption {
+    
+    private final ZoneId zone;
+    private final LocalDate date;
+    private final long startOfDay;
+    private final long endOfDay;
+    private final double amountConsumed;
+
+    private DailyConsumption( ZoneId zone, LocalDate date, long startOfDay, long endOfDay, double amountConsumed ) {
+        this.zone = zone;
+        this.date = date;
+        this.startOfDay = startOfDay;
+        this.endOfDay = endOfDay;
+        this.amountConsumed = amountConsumed;
+    }
+    
+    // The day in the given zone that contains the given instant (epoch seconds)
+    static DailyConsumption of( ZoneId zone, long timestamp, double amountConsumed ) {
+        LocalDate date = Instant.ofEpochSecond( timestamp ).atZone( zone ).toLocalDate();
+        // atStartOfDay() also handles zones that skip midnight on a DST transition
+        long startOfDay = date.atStartOfDay( zone ).toEpochSecond();
+        long endOfDay = date.plusDays(1).atStartOfDay( zone ).toEpochSecond();
+        return new DailyConsumption( zone, date, startOfDay, endOfDay, amountConsumed );
+    }
+    
+    DailyConsumption plus( double amount ) {
+        return new DailyConsumption( zone, date, startOfDay, endOfDay, amountConsumed + amount );
+    }
+    
+    boolean covers( ZoneId zone, long timestamp ) {
+        return this.zone.equals( zone ) && timestamp >= startOfDay && timestamp < endOfDay;
+    }
+
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    public LocalDate getDate() {
+        return date;
+    }
+
+    public long getStartOfDay() {
+        return startOfDay;
+    }
+
+    public long getEndOfDay() {
+        return endOfDay;
+    }
+
+    public double getAmountConsumed() {
+        return amountConsumed;
+    }
+    
+}
@@ -0,0 +1,310 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Fixed-capacity ring buffer that keeps the entries of a single data set in
+// parallel primitive arrays. The arrays grow on demand up to maxCapacity, after
+// which every new entry overwrites the oldest one. Besides the values, every
+// entry may carry a sequence number telling when it was added, see DataSet.
+final class DataSeries {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int maxCapacity;
+    private long[] timestamps;
+    private double[] amountsRemaining;
+    private double[] amountsConsumed;
+    private double[] amountsAdded;
+    private int[] numRefills;
+    private long[] sequences;
+    private int head;   // Physical index of the oldest entry
+    private int size;
+    private long lastEvictedTimestamp = Long.MIN_VALUE;
+    private long lastEvictedSequence;
+
+    DataSeries( int maxCapacity ) {
+        this.maxCapacity = maxCapacity;
+        allocate( Math.min( INITIAL_CAPACITY, maxCapacity ) );
+    }
+
+    // Starts with room for "capacity" entries right away
+    DataSeries( int maxCapacity, int capacity ) {
+        this.maxCapacity = maxCapacity;
+        allocate( capacity );
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getMaxCapacity() {
+        return maxCapacity;
+    }
+
+    // Memory taken by the columns, including the room not used yet
+    long getSizeInBytes() {
+        return timestamps.length*44L;
+    }
+
+    // Timestamp of the newest entry that was dropped to make room for newer ones
+    long getLastEvictedTimestamp() {
+        return lastEvictedTimestamp;
+    }
+
+    // Highest sequence number of the entries dropped to make room for newer ones
+    long getLastEvictedSequence() {
+        return lastEvictedSequence;
+    }
+
+    void clear() {
+        head = 0;
+        size = 0;
+        lastEvictedTimestamp = Long.MIN_VALUE;
+        lastEvictedSequence = 0;
+    }
+
+    void add( long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int refills ) {
+        add( timestamp, amountRemaining, amountConsumed, amountAdded, refills, 0 );
+    }
+
+    void add( long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int refills, long sequence ) {
+        if ( size == timestamps.length && size < maxCapacity ) {
+            grow();
+        }
+        int index;
+        if ( size == timestamps.length ) {
+            // Full - overwrite the oldest entry
+            index = head;
+            lastEvictedTimestamp = Math.max( lastEvictedTimestamp, timestamps[index] );
+            lastEvictedSequence = Math.max( lastEvictedSequence, sequences[index] );
+            head = next( head );
+        } else {
+            index = physicalIndex( size );
+            size++;
+        }
+        timestamps[index] = timestamp;
+        amountsRemaining[index] = amountRemaining;
+        amountsConsumed[index] = amountConsumed;
+        amountsAdded[index] = amountAdded;
+        numRefills[index] = refills;
+        sequences[index] = sequence;
+    }
+
+    // Inserts an entry at the given logical index, shifting the newer entries
+    // up by one. When the series is full the oldest entry is evicted first, so
+    // an entry that would end up being the oldest one is not stored at all.
+    void insert( int i, long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int refills ) {
+        insert( i, timestamp, amountRemaining, amountConsumed, amountAdded, refills, 0 );
+    }
+
+    void insert( int i, long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int refills, long sequence ) {
+        if ( i == size ) {
+            add( timestamp, amountRemaining, amountConsumed, amountAdded, refills, sequence );
+            return;
+        }
+        if ( size == timestamps.length && size < maxCapacity ) {
+            grow();
+        }
+        if ( size == timestamps.length ) {
+            if ( i == 0 ) {
+                lastEvictedTimestamp = Math.max( lastEvictedTimestamp, timestamp );
+                lastEvictedSequence = Math.max( lastEvictedSequence, sequence );
+                return;
+            }
+            lastEvictedTimestamp = Math.max( lastEvictedTimestamp, timestamps[head] );
+            lastEvictedSequence = Math.max( lastEvictedSequence, sequences[head] );
+            head = next( head );
+            size--;
+            i--;
+        }
+        for ( int j=size; j>i; j-- ) {
+            int dest = physicalIndex( j );
+            int src = physicalIndex( j-1 );
+            timestamps[dest] = timestamps[src];
+            amountsRemaining[dest] = amountsRemaining[src];
+            amountsConsumed[dest] = amountsConsumed[src];
+            amountsAdded[dest] = amountsAdded[src];
+            numRefills[dest] = numRefills[src];
+            sequences[dest] = sequences[src];
+        }
+        size++;
+        set( i, timestamp, amountRemaining, amountConsumed, amountAdded, refills );
+        sequences[ physicalIndex(i) ] = sequence;
+    }
+
+    void set( int i, long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int refills ) {
+        int index = physicalIndex(i);
+        timestamps[index] = timestamp;
+        amountsRemaining[index] = amountRemaining;
+        amountsConsumed[index] = amountConsumed;
+        amountsAdded[index] = amountAdded;
+        numRefills[index] = refills;
+    }
+
+    long getTimestamp( int i ) {
+        return timestamps[ physicalIndex(i) ];
+    }
+
+    double getAmountRemaining( int i ) {
+        return amountsRemaining[ physicalIndex(i) ];
+    }
+
+    double getAmountConsumed( int i ) {
+        return amountsConsumed[ physicalIndex(i) ];
+    }
+
+    double getAmountAdded( int i ) {
+        return amountsAdded[ physicalIndex(i) ];
+    }
+
+    int getNumRefills( int i ) {
+        return numRefills[ physicalIndex(i) ];
+    }
+
+    long getSequence( int i ) {
+        return sequences[ physicalIndex(i) ];
+    }
+
+    DataSetEntry getEntry( int i ) {
+        int index = physicalIndex(i);
+        return new DataSetEntry( timestamps[index], amountsRemaining[index], amountsConsumed[index], amountsAdded[index], numRefills[index] );
+    }
+
+    // Returns the logical index of the first entry with a timestamp not lower
+    // than the given one. Entries are expected to be sorted by timestamp.
+    int lowerBound( long timestamp ) {
+        int low = 0;
+        int high = size;
+        while ( low < high ) {
+            int mid = (low + high) >>> 1;
+            if ( timestamps[ physicalIndex(mid) ] < timestamp ) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Returns an independent copy of the entries in the given logical index range
+    DataSeries copy( int fromIndex, int toIndex ) {
+        int count = toIndex - fromIndex;
+        DataSeries ret = new DataSeries( count, count );
+        int start = physicalIndex( fromIndex );
+        int firstPart = Math.min( count, timestamps.length - start );
+        copyColumns( start, ret, 0, firstPart );
+        copyColumns( 0, ret, firstPart, count - firstPart );
+        ret.size = count;
+        ret.lastEvictedTimestamp = lastEvictedTimestamp;
+        ret.lastEvictedSequence = lastEvictedSequence;
+        return ret;
+    }
+
+    void writeTo( DataOutput out ) throws IOException {
+        out.writeInt( size );
+        out.writeLong( lastEvictedTimestamp );
+        for ( int i=0; i<size; i++ ) {
+            int index = physicalIndex(i);
+            out.writeLong( timestamps[index] );
+            out.writeDouble( amountsRemaining[index] );
+            out.writeDouble( amountsConsumed[index] );
+            out.writeDouble( amountsAdded[index] );
+            out.writeInt( numRefills[index] );
+        }
+    }
+
+    // Replaces the content with the entries written by writeTo, keeping only
+    // the newest ones if there are more than maxCapacity of them
+    void readFrom( ByteBuffer in ) {
+        clear();
+        int count = in.getInt();
+        long evicted = in.getLong();
+        for ( int i=0; i<count; i++ ) {
+            add( in.getLong(), in.getDouble(), in.getDouble(), in.getDouble(), in.getInt() );
+        }
+        lastEvictedTimestamp = Math.max( lastEvictedTimestamp, evicted );
+    }
+
+    private void copyColumns( int srcPos, DataSeries dest, int destPos, int length ) {
+        System.arraycopy( timestamps, srcPos, dest.timestamps, destPos, length );
+        System.arraycopy( amountsRemaining, srcPos, dest.amountsRemaining, destPos, length );
+        System.arraycopy( amountsConsumed, srcPos, dest.amountsConsumed, destPos, length );
+        System.arraycopy( amountsAdded, srcPos, dest.amountsAdded, destPos, length );
+        System.arraycopy( numRefills, srcPos, dest.numRefills, destPos, length );
+        System.arraycopy( sequences, srcPos, dest.sequences, destPos, length );
+    }
+
+    private int physicalIndex( int i ) {
+        int index = head + i;
+        return index < timestamps.length ? index : index - timestamps.length;
+    }
+
+    private int next( int index ) {
+        return index + 1 < timestamps.length ? index + 1 : 0;
+    }
+
+    private void allocate( int capacity ) {
+        timestamps = new long[capacity];
+        amountsRemaining = new double[capacity];
+        amountsConsumed = new double[capacity];
+        amountsAdded = new double[capacity];
+        numRefills = new int[capacity];
+        sequences = new long[capacity];
+    }
+
+    private void grow() {
+        long[] oldTimestamps = timestamps;
+        double[] oldAmountsRemaining = amountsRemaining;
+        double[] oldAmountsConsumed = amountsConsumed;
+        double[] oldAmountsAdded = amountsAdded;
+        int[] oldNumRefills = numRefills;
+        long[] oldSequences = sequences;
+
+        allocate( (int) Math.min( (long) oldTimestamps.length*2, maxCapacity ) );
+
+        // Unwrap the ring so that the oldest entry lands at index 0
+        int firstPart = oldTimestamps.length - head;
+        System.arraycopy( oldTimestamps, head, timestamps, 0, firstPart );
+        System.arraycopy( oldTimestamps, 0, timestamps, firstPart, head );
+        System.arraycopy( oldAmountsRemaining, head, amountsRemaining, 0, firstPart );
+        System.arraycopy( oldAmountsRemaining, 0, amountsRemaining, firstPart, head );
+        System.arraycopy( oldAmountsConsumed, head, amountsConsumed, 0, firstPart );
+        System.arraycopy( oldAmountsConsumed, 0, amountsConsumed, firstPart, head );
+        System.arraycopy( oldAmountsAdded, head, amountsAdded, 0, firstPart );
+        System.arraycopy( oldAmountsAdded, 0, amountsAdded, firstPart, head );
+        System.arraycopy( oldNumRefills, head, numRefills, 0, firstPart );
+        System.arraycopy( oldNumRefills, 0, numRefills, firstPart, head );
+        System.arraycopy( oldSequences, head, sequences, 0, firstPart );
+        System.arraycopy( oldSequences, 0, sequences, firstPart, head );
+        head = 0;
+    }
+
+}
@@ -0,0 +1,494 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import sbl.metrics.FlightRecorderEvents;
+import sbl.metrics.LatencyHistogram;
+import sbl.metrics.Metrics;
+
+// All the data kept for a single device. Writers take the device's write lock,
+// readers only hold the read lock for as long as it takes to copy the range
+// they need, and do all the formatting on that private copy. When a log is
+// given, every change is appended to it under the write lock, so the log holds
+// the changes of a device in the order they were applied.
+final class DataSet {
+
+    private static final int HOUR_TIER = 1;  // Index of the hourly aggregates in "rollups"
+    private static final Resolution[] ROLLUP_RESOLUTIONS = { Resolution.MINUTE, Resolution.HOUR, Resolution.DAY };  // Of the tiers in "rollups"
+    private static final LongAdder ADDED_ENTRIES = Metrics.getInstance().counter( "sbl_data_set_entries_added_total", 
+        "Entries added to the data sets, not counting the ones restored on startup" );
+    private static final LatencyHistogram LOCK_WAITS = Metrics.getInstance().histogram( "sbl_data_set_lock_wait_seconds", 
+        "Time spent waiting for the lock of a data set, by the acquisitions that could not take it right away" );
+
+    private final String deviceId;
+    private final byte[] logKey;
+    private final SegmentLog log;
+    private final DataSetEvents events;
+    private final RawSeries rawEntries;
+    private final RollupSeries[] rollups;  // Ordered from the finest to the coarsest
+    private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    private final Lock readLock = readWriteLock.readLock();
+    private final Lock writeLock = readWriteLock.writeLock();
+    private long lastSequence = -1;  // Sequence number of the last log record applied
+    // Every raw entry is numbered in the order the entries were added. The
+    // numbers are replayed from the log like everything else, so they
+    // survive restarts and can serve as cursors for incremental fetches.
+    private long lastEntrySequence;
+    private long clearedEntrySequence;  // Last entry number before the latest clear
+    // Bumped on every change and readable without locking, see getVersion()
+    private volatile long version;
+    private volatile long lastModifiedMillis;
+    // Running total of the day the last getDailyConsumption() asked for; kept
+    // up to date on ingest, so reading it normally needs no lock nor any summing
+    private volatile DailyConsumption dailyConsumption;
+
+    DataSet( String deviceId, SegmentLog log, DataSetEvents events, int maxEntryCount, int maxMinuteCount, int maxHourCount, int maxDayCount ) {
+        this.deviceId = deviceId;
+        this.logKey = deviceId.getBytes( StandardCharsets.UTF_8 );
+        this.log = log;
+        this.events = events;
+        this.rawEntries = new RawSeries( maxEntryCount );
+        this.rollups = new RollupSeries[] {
+            new RollupSeries( Resolution.MINUTE.getSeconds(), maxMinuteCount ),
+            new RollupSeries( Resolution.HOUR.getSeconds(), maxHourCount ),
+            new RollupSeries( Resolution.DAY.getSeconds(), maxDayCount )
+        };
+    }
+
+    // Copy constructor used for snapshots; the copy is not attached to the log
+    private DataSet( DataSet src ) {
+        this.deviceId = src.deviceId;
+        this.logKey = src.logKey;
+        this.log = null;
+        this.events = null;
+        this.rawEntries = src.rawEntries.copy();
+        this.rollups = new RollupSeries[ src.rollups.length ];
+        for ( int i=0; i<rollups.length; i++ ) {
+            rollups[i] = src.rollups[i].copy();
+        }
+        this.lastSequence = src.lastSequence;
+        this.lastEntrySequence = src.lastEntrySequence;
+        this.clearedEntrySequence = src.clearedEntrySequence;
+    }
+
+    String getDeviceId() {
+        return deviceId;
+    }
+
+    // Changes whenever the content changes; only meaningful within one run
+    long getVersion() {
+        return version;
+    }
+
+    long getLastModifiedMillis() {
+        return lastModifiedMillis;
+    }
+
+    // Number of entries held in all the tiers
+    int getSampleCount() {
+        lock( readLock );
+        try {
+            int ret = rawEntries.size();
+            for ( RollupSeries rollup : rollups ) {
+                ret += rollup.size();
+            }
+            return ret;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    // Estimated memory taken by the entries of all the tiers
+    long getSizeInBytes() {
+        lock( readLock );
+        try {
+            long ret = rawEntries.getSizeInBytes();
+            for ( RollupSeries rollup : rollups ) {
+                ret += rollup.getSizeInBytes();
+            }
+            return ret;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    long getLastSequence() {
+        lock( readLock );
+        try {
+            return lastSequence;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    DataSet copy() {
+        lock( readLock );
+        try {
+            return new DataSet( this );
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    // Writes the content of an unshared copy, see copy()
+    void writeTo( DataOutput out ) throws IOException {
+        out.writeLong( lastSequence );
+        out.writeLong( lastEntrySequence );
+        out.writeLong( clearedEntrySequence );
+        rawEntries.writeTo( out );
+        out.writeByte( rollups.length );
+        for ( RollupSeries rollup : rollups ) {
+            rollup.writeTo( out );
+        }
+    }
+
+    // Reads what writeTo wrote in the given version of the snapshot format.
+    // Version 1 had no entry numbers, so the entries are numbered from 1.
+    void readFrom( ByteBuffer in, int version ) {
+        lock( writeLock );
+        try {
+            lastSequence = in.getLong();
+            if ( version >= 2 ) {
+                lastEntrySequence = in.getLong();
+                clearedEntrySequence = in.getLong();
+                rawEntries.readFrom( in, true );
+            } else {
+                rawEntries.readFrom( in, false );
+                lastEntrySequence = rawEntries.size();
+                clearedEntrySequence = 0;
+            }
+            int rollupCount = in.get();
+            if ( rollupCount != rollups.length ) {
+                throw new IllegalStateException( "Unexpected number of rollups: " + rollupCount );
+            }
+            for ( RollupSeries rollup : rollups ) {
+                rollup.readFrom( in );
+            }
+            dailyConsumption = null;
+            touch();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void add( long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int numRefills ) {
+        FlightRecorderEvents.IngestEvent event = FlightRecorderEvents.getInstance().beginIngest();
+        long lockWait = lock( writeLock );
+        try {
+            if ( log != null ) {
+                lastSequence = log.appendEntry( logKey, timestamp, amountRemaining, amountConsumed, amountAdded, numRefills );
+            }
+            apply( timestamp, amountRemaining, amountConsumed, amountAdded, numRefills );
+            publish( timestamp, amountRemaining, amountConsumed, amountAdded, numRefills );
+        } finally {
+            rawEntries.flush();
+            writeLock.unlock();
+        }
+        ADDED_ENTRIES.increment();
+        event.commit( deviceId, 1, lockWait );
+    }
+
+    // Adds a batch of entries under a single lock, merging them into the series
+    // in timestamp order. Entries equal to one already stored (same timestamp
+    // and values) are skipped, and so are entries older than the ones the raw
+    // series has already dropped, as those would not be kept anyway.
+    IngestResult addAll( DataSeries batch ) {
+        int accepted = 0;
+        int duplicates = 0;
+        int rejected = 0;
+        FlightRecorderEvents.IngestEvent event = FlightRecorderEvents.getInstance().beginIngest();
+        long lockWait = lock( writeLock );
+        try {
+            for ( int i=0; i<batch.size(); i++ ) {
+                long timestamp = batch.getTimestamp(i);
+                double amountRemaining = batch.getAmountRemaining(i);
+                double amountConsumed = batch.getAmountConsumed(i);
+                double amountAdded = batch.getAmountAdded(i);
+                int numRefills = batch.getNumRefills(i);
+                if ( rawEntries.isEvicted( timestamp ) ) {
+                    rejected++;
+                } else if ( rawEntries.contains( timestamp, amountRemaining, amountConsumed, amountAdded, numRefills ) ) {
+                    duplicates++;
+                } else {
+                    if ( log != null ) {
+                        lastSequence = log.appendEntry( logKey, timestamp, amountRemaining, amountConsumed, amountAdded, numRefills );
+                    }
+                    apply( timestamp, amountRemaining, amountConsumed, amountAdded, numRefills );
+                    publish( timestamp, amountRemaining, amountConsumed, amountAdded, numRefills );
+                    accepted++;
+                }
+            }
+        } finally {
+            // Late entries for the same sealed block are compressed once
+            rawEntries.flush();
+            writeLock.unlock();
+        }
+        ADDED_ENTRIES.add( accepted );
+        event.commit( deviceId, accepted, lockWait );
+        return new IngestResult( accepted, duplicates, rejected );
+    }
+
+    void clear() {
+        lock( writeLock );
+        try {
+            if ( log != null ) {
+                lastSequence = log.appendClear( logKey );
+            }
+            applyClear();
+            if ( events != null ) {
+                events.dataSetCleared( deviceId );
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Re-applies a change read back from the log, unless it is already included
+    void replay( long sequence, long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int numRefills ) {
+        lock( writeLock );
+        try {
+            if ( sequence > lastSequence ) {
+                apply( timestamp, amountRemaining, amountConsumed, amountAdded, numRefills );
+                lastSequence = sequence;
+            }
+        } finally {
+            rawEntries.flush();
+            writeLock.unlock();
+        }
+    }
+
+    void replayClear( long sequence ) {
+        lock( writeLock );
+        try {
+            if ( sequence > lastSequence ) {
+                applyClear();
+                lastSequence = sequence;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Returns the amount consumed during the day in the given zone that contains
+    // the given instant (epoch seconds)
+    DailyConsumption getDailyConsumption( ZoneId zone, long timestamp ) {
+        DailyConsumption ret = dailyConsumption;
+        if ( ret != null && ret.covers( zone, timestamp ) ) {
+            return ret;
+        }
+        FlightRecorderEvents.AggregationEvent event = FlightRecorderEvents.getInstance().beginAggregation();
+        long lockWait = lock( writeLock );
+        try {
+            ret = dailyConsumption;
+            if ( ret == null || !ret.covers( zone, timestamp ) ) {
+                ret = sumDailyConsumption( zone, timestamp );
+                dailyConsumption = ret;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        event.commit( "dailyConsumption", deviceId, 1, 1, lockWait );
+        return ret;
+    }
+
+    // Returns the raw entries added after the given cursor (entry number), or
+    // all of them for "0" or a negative cursor
+    EntriesSince getRawEntriesSince( long cursor ) {
+        FlightRecorderEvents.QueryEvent event = FlightRecorderEvents.getInstance().beginQuery();
+        long lockWait = lock( readLock );
+        EntriesSince ret;
+        try {
+            long expiredSequence = Math.max( clearedEntrySequence, rawEntries.getLastEvictedSequence() );
+            boolean expired = cursor > 0 && ( cursor < expiredSequence || cursor > lastEntrySequence );
+            DataSeries entries = expired ? new DataSeries( 0 ) : rawEntries.copySince( cursor );
+            ret = new EntriesSince( entries, lastEntrySequence, expired );
+        } finally {
+            readLock.unlock();
+        }
+        event.commit( deviceId, Resolution.RAW.getLabel(), 0, 0, ret.getEntries().size(), lockWait );
+        return ret;
+    }
+
+    DataSeries getRawEntries() {
+        return getLastRawEntries( 0 );
+    }
+
+    // Returns the entries with timestamps in the [from, to) range
+    DataSeries getRawEntries( long from, long to ) {
+        FlightRecorderEvents.QueryEvent event = FlightRecorderEvents.getInstance().beginQuery();
+        long lockWait = lock( readLock );
+        DataSeries ret;
+        try {
+            ret = getRawRange( from, to );
+        } finally {
+            readLock.unlock();
+        }
+        event.commit( deviceId, Resolution.RAW.getLabel(), from, to, ret.size(), lockWait );
+        return ret;
+    }
+
+    // Returns the [from, to) range from the coarsest tier that is not coarser
+    // than the requested resolution. If that tier no longer holds the start of
+    // the range, the range is served from the first coarser tier that does.
+    DataSeries getEntries( Resolution resolution, long from, long to ) {
+        FlightRecorderEvents.QueryEvent event = FlightRecorderEvents.getInstance().beginQuery();
+        long lockWait = lock( readLock );
+        int tier;
+        DataSeries ret;
+        try {
+            tier = -1;  // Raw entries
+            for ( int i=0; i<rollups.length; i++ ) {
+                if ( rollups[i].getBucketSeconds() <= resolution.getSeconds() ) {
+                    tier = i;
+                }
+            }
+            long lastEvicted = rawEntries.getLastEvictedTimestamp();
+            if ( tier == -1 && lastEvicted != Long.MIN_VALUE && lastEvicted >= from ) {
+                tier = 0;
+            }
+            while ( tier >= 0 && tier < rollups.length-1 && !rollups[tier].covers( from ) ) {
+                tier++;
+            }
+            ret = tier == -1 ? getRawRange( from, to ) : rollups[tier].getBuckets( from, to );
+        } finally {
+            readLock.unlock();
+        }
+        event.commit( deviceId, ( tier == -1 ? Resolution.RAW : ROLLUP_RESOLUTIONS[tier] ).getLabel(), from, to, ret.size(), lockWait );
+        return ret;
+    }
+
+    // Adds the aggregates of the [from, to) range to the totals, from the tier
+    // with the same bucket width
+    void addTotalsTo( FleetTotals totals, long from, long to ) {
+        lock( readLock );
+        try {
+            for ( RollupSeries rollup : rollups ) {
+                if ( rollup.getBucketSeconds() == totals.getBucketSeconds() ) {
+                    rollup.addTo( totals, from, to );
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    // Passing "0" or a negative value returns the whole series
+    DataSeries getLastRawEntries( int numEntries ) {
+        FlightRecorderEvents.QueryEvent event = FlightRecorderEvents.getInstance().beginQuery();
+        long lockWait = lock( readLock );
+        DataSeries ret;
+        try {
+            ret = rawEntries.copyLast( numEntries );
+        } finally {
+            readLock.unlock();
+        }
+        event.commit( deviceId, Resolution.RAW.getLabel(), 0, 0, ret.size(), lockWait );
+        return ret;
+    }
+
+    private void apply( long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int numRefills ) {
+        rawEntries.add( timestamp, amountRemaining, amountConsumed, amountAdded, numRefills, ++lastEntrySequence );
+        for ( RollupSeries rollup : rollups ) {
+            rollup.add( timestamp, amountRemaining, amountConsumed, amountAdded, numRefills );
+        }
+        DailyConsumption today = dailyConsumption;
+        if ( today != null ) {
+            if ( timestamp >= today.getEndOfDay() ) {
+                // The first entry of a new day; the day only holds this one
+                // unless older entries of it were added out of order
+                dailyConsumption = sumDailyConsumption( today.getZone(), timestamp );
+            } else if ( timestamp >= today.getStartOfDay() ) {
+                dailyConsumption = today.plus( amountConsumed );
+            }
+        }
+        touch();
+    }
+
+    private void applyClear() {
+        clearedEntrySequence = lastEntrySequence;
+        rawEntries.clear();
+        for ( RollupSeries rollup : rollups ) {
+            rollup.clear();
+        }
+        DailyConsumption today = dailyConsumption;
+        if ( today != null ) {
+            dailyConsumption = DailyConsumption.of( today.getZone(), today.getStartOfDay(), 0 );
+        }
+        touch();
+    }
+
+    private DailyConsumption sumDailyConsumption( ZoneId zone, long timestamp ) {
+        DailyConsumption ret = DailyConsumption.of( zone, timestamp, 0 );
+        // Falls back to the minute aggregates if the raw entries of the day were evicted
+        DataSeries entries = getEntries( Resolution.RAW, ret.getStartOfDay(), ret.getEndOfDay() );
+        double amountConsumed = 0;
+        for ( int i=0; i<entries.size(); i++ ) {
+            amountConsumed += entries.getAmountConsumed(i);
+        }
+        return ret.plus( amountConsumed );
+    }
+
+    // Changes replayed from the log are not published, only the new ones
+    private void publish( long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int numRefills ) {
+        if ( events != null && events.hasListeners( deviceId ) ) {
+            events.entryAdded( deviceId, new DataSetEntry( timestamp, amountRemaining, amountConsumed, amountAdded, numRefills ), rollups[HOUR_TIER].getBucket( timestamp ) );
+        }
+    }
+
+    // Only the acquisitions that have to wait are timed, so taking a free lock
+    // costs no more than before. When other threads are queued for the lock,
+    // it is not barged into either, just like lock() would not. Returns how
+    // long it took to get the lock, in nanoseconds.
+    private long lock( Lock lock ) {
+        if ( !readWriteLock.hasQueuedThreads() && lock.tryLock() ) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        lock.lock();
+        long ret = System.nanoTime() - start;
+        LOCK_WAITS.record( ret );
+        return ret;
+    }
+
+    private void touch() {
+        lastModifiedMillis = System.currentTimeMillis();
+        version++;
+    }
+
+    private DataSeries getRawRange( long from, long to ) {
+        return rawEntries.copy( from, Math.max( from, to ) );
+    }
+
+}
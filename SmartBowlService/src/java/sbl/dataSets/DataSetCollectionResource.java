@@ -26,8 +26,27 @@ SOFTWARE.
 
 package sbl.dataSets;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import sbl.RequestExecutor;
+import sbl.metrics.FlightRecorderEvents;
 
 import static sbl.dataSets.TestDataSetResource.TEST_DATA_SET_ID;
 
@@ -35,6 +54,118 @@ import static sbl.dataSets.TestDataSetResource.TEST_DATA_SET_ID;
 @Path("dataSets")
 public class DataSetCollectionResource {
 
+    // Response header listing the devices whose entries could not be read
+    public static final String FAILED_DEVICES_HEADER = "X-Failed-Devices";
+    
+    private static final Logger LOGGER = Logger.getLogger( DataSetCollectionResource.class.getName() );
+    private static final int MAX_DEVICE_COUNT = 1000;
+    private static final int MAX_ENTRY_COUNT = Integer.getInteger( "sbl.dataSets.maxBatchQueryEntries", 1000000 );
+    
+    // Returns the entries of many devices at once, as CSV with the device ID
+    // in the first column. The entries are selected the same way as for a
+    // single device (see DataSetResource), except for "since", and a window
+    // is required: "numEntries", "hoursBack" or "from". The devices are read
+    // in parallel; if some of them fail, the others are still returned and
+    // the failed ones are listed in the X-Failed-Devices header.
+    @GET
+    @Produces(MediaType.TEXT_PLAIN)
+    public void getDataSets(
+            @QueryParam("devices") String devices,
+            @DefaultValue("0") @QueryParam("numEntries") int numEntries,
+            @DefaultValue("0") @QueryParam("hoursBack") int hoursBack,
+            @QueryParam("from") String from,
+            @QueryParam("to") String to,
+            @QueryParam("resolution") String resolution,
+            @Suspended AsyncResponse response
+        ) {
+        RequestExecutor.DASHBOARD.submit( response, () -> getDataSets(devices, numEntries, hoursBack, from, to, resolution) );
+    }
+    
+    private Response getDataSets( String devices, int numEntries, int hoursBack, String from, String to, String resolution ) {
+        List <String> deviceIds = parseDeviceIds( devices );
+        if ( deviceIds.isEmpty() || deviceIds.size() > MAX_DEVICE_COUNT ) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("List 1 to " + MAX_DEVICE_COUNT + " devices in \"devices\"").build();
+        }
+        boolean rangeQuery = from != null || to != null || resolution != null;
+        Resolution rangeResolution = rangeQuery ? DataSetResource.parseResolution( resolution ) : null;
+        long fromSecond = DataSetResource.parseInstant( from, Long.MIN_VALUE );
+        long toSecond = DataSetResource.parseInstant( to, Long.MAX_VALUE );
+        // Whole series of many devices would not fit in memory, so the window
+        // has to bound what every device returns
+        boolean windowed = rangeQuery ? fromSecond != Long.MIN_VALUE : numEntries > 0 || hoursBack > 0;
+        long maxEntriesPerDevice = rangeQuery ? 0 : numEntries > 0 ? numEntries : hoursBack;
+        if ( !windowed || maxEntriesPerDevice*deviceIds.size() > MAX_ENTRY_COUNT ) {
+            return tooManyEntries();
+        }
+        
+        // Every read only copies the entries out under the data set's lock, so
+        // the devices are read in parallel and the response is streamed after.
+        // The size of a range is only known once it is read, so the reads stop
+        // as soon as they add up to too many entries.
+        DataSetsDAO dataSetsDAO = DataSetsDAO.getInstance();
+        AtomicLong readCount = new AtomicLong();
+        List <DataSeries> results = deviceIds.parallelStream().map( deviceId -> {
+            if ( readCount.get() > MAX_ENTRY_COUNT ) {
+                return null;
+            }
+            try {
+                DataSeries series = DataSetResource.readSeries( dataSetsDAO, deviceId, numEntries, hoursBack, rangeResolution, fromSecond, toSecond );
+                readCount.addAndGet( series.size() );
+                return series;
+            } catch ( RuntimeException ex ) {
+                LOGGER.log( Level.WARNING, "Cannot read the data set of " + deviceId, ex );
+                return null;
+            }
+        } ).collect( Collectors.toList() );
+        if ( readCount.get() > MAX_ENTRY_COUNT ) {
+            return tooManyEntries();
+        }
+        
+        List <String> failed = new ArrayList<>();
+        for ( int i=0; i<deviceIds.size(); i++ ) {
+            if ( results.get(i) == null ) {
+                failed.add( deviceIds.get(i) );
+            }
+        }
+        StreamingOutput body = output -> {
+            FlightRecorderEvents.RenderEvent event = FlightRecorderEvents.getInstance().beginRender();
+            CsvWriter writer = new CsvWriter( output );
+            writer.writeHeader( "device," + CsvWriter.HEADER );
+            int entryCount = 0;
+            for ( int i=0; i<deviceIds.size(); i++ ) {
+                if ( results.get(i) != null ) {
+                    writer.writeRows( deviceIds.get(i), results.get(i) );
+                    entryCount += results.get(i).size();
+                }
+            }
+            writer.flush();
+            event.commit( null, "csv", entryCount, writer.getBytesWritten() );
+        };
+        Response.ResponseBuilder builder = Response.ok( body );
+        if ( !failed.isEmpty() ) {
+            builder.header( FAILED_DEVICES_HEADER, String.join( ",", failed ) );
+        }
+        return builder.build();
+    }
+    
+    private static Response tooManyEntries() {
+        return Response.status(Response.Status.BAD_REQUEST)
+            .entity("Limit the entries with \"numEntries\", \"hoursBack\" or \"from\"; at most " + MAX_ENTRY_COUNT + " entries are returned in total").build();
+    }
+    
+    // Device IDs are case-insensitive, see DataSetResource; duplicates are dropped
+    static List<String> parseDeviceIds( String value ) {
+        Set <String> ret = new LinkedHashSet<>();
+        if ( value != null ) {
+            for ( String id : value.split(",") ) {
+                if ( !id.trim().isEmpty() ) {
+                    ret.add( id.trim().toLowerCase() );
+                }
+            }
+        }
+        return new ArrayList<>( ret );
+    }
+
     @Path("{dataSet}")
     public DataSetResource getSeries( @PathParam("dataSet") String id ) {
         if ( TEST_DATA_SET_ID.equalsIgnoreCase(id) ) {
@@ -0,0 +1,89 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Fans the changes of the data sets out to the listeners of each device.
+// Devices nobody listens to cost a single map lookup per change.
+final class DataSetEvents implements DataSetListener {
+
+    private static final Logger LOGGER = Logger.getLogger( DataSetEvents.class.getName() );
+
+    private final ConcurrentMap <String, List<DataSetListener>> listenerLookup = new ConcurrentHashMap<>();
+
+    void addListener( String deviceId, DataSetListener listener ) {
+        listenerLookup.compute( deviceId, (id, listeners) -> {
+            List<DataSetListener> ret = listeners != null ? listeners : new CopyOnWriteArrayList<>();
+            ret.add( listener );
+            return ret;
+        } );
+    }
+
+    void removeListener( String deviceId, DataSetListener listener ) {
+        listenerLookup.computeIfPresent( deviceId, (id, listeners) -> {
+            listeners.remove( listener );
+            return listeners.isEmpty() ? null : listeners;
+        } );
+    }
+
+    boolean hasListeners( String deviceId ) {
+        return listenerLookup.containsKey( deviceId );
+    }
+
+    @Override
+    public void entryAdded( String deviceId, DataSetEntry entry, DataSetEntry hourlyEntry ) {
+        List<DataSetListener> listeners = listenerLookup.get( deviceId );
+        if ( listeners == null ) return;
+        for ( DataSetListener listener : listeners ) {
+            try {
+                listener.entryAdded( deviceId, entry, hourlyEntry );
+            } catch ( RuntimeException ex ) {
+                LOGGER.log( Level.WARNING, "Data set listener failed", ex );
+            }
+        }
+    }
+
+    @Override
+    public void dataSetCleared( String deviceId ) {
+        List<DataSetListener> listeners = listenerLookup.get( deviceId );
+        if ( listeners == null ) return;
+        for ( DataSetListener listener : listeners ) {
+            try {
+                listener.dataSetCleared( deviceId );
+            } catch ( RuntimeException ex ) {
+                LOGGER.log( Level.WARNING, "Data set listener failed", ex );
+            }
+        }
+    }
+
+}
@@ -26,18 +26,46 @@ SOFTWARE.
 
 package sbl.dataSets;
 
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Locale;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
+import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import sbl.CacheValidators;
+import sbl.RequestExecutor;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.Variant;
+import sbl.metrics.FlightRecorderEvents;
 
 public class DataSetResource {
 
+    // Response header with the cursor to pass as "since" to fetch what comes next
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    
+    // Compact binary alternative to CSV, see BinaryWriter and BinaryDataSetReader
+    public static final String BINARY_TYPE = "application/vnd.smartbowl.dataset";
+    public static final MediaType BINARY_MEDIA_TYPE = MediaType.valueOf( BINARY_TYPE );
+    
+    // CSV comes first, so it stays the default for clients that accept anything
+    private static final List<Variant> VARIANTS = Variant.mediaTypes( MediaType.TEXT_PLAIN_TYPE, BINARY_MEDIA_TYPE ).build();
+    
+    private static final int MAX_BATCH_SIZE = Integer.getInteger( "sbl.dataSets.maxBatchSize", 10000 );
     
     private final DataSetsDAO dataSetsDAO;
     private final String deviceId;
@@ -57,28 +85,110 @@ public class DataSetResource {
     }
 
     @GET
-    @Produces(MediaType.TEXT_PLAIN)
-    public String getDataSet( 
+    @Produces({MediaType.TEXT_PLAIN, BINARY_TYPE})
+    public void getDataSet( 
             @DefaultValue("0") @QueryParam("numEntries") int numEntries,
-            @DefaultValue("0") @QueryParam("hoursBack") int hoursBack
+            @DefaultValue("0") @QueryParam("hoursBack") int hoursBack,
+            @QueryParam("from") String from,
+            @QueryParam("to") String to,
+            @QueryParam("resolution") String resolution,
+            @QueryParam("since") String since,
+            @Context Request request,
+            @Suspended AsyncResponse response
         ) {
-        if ( ( numEntries == 0 && hoursBack == 0 ) || numEntries > 0 ) {
-            return dataSetsDAO.getRawEntriesCSV(deviceId, numEntries);
+        RequestExecutor.DASHBOARD.submit( response, () -> getDataSet(numEntries, hoursBack, from, to, resolution, since, request) );
+    }
+    
+    // With "since", only the raw entries added after that cursor are returned,
+    // together with the next cursor in the X-Next-Cursor header. "0" fetches
+    // everything there is. If some of the entries the client has not seen yet
+    // are gone (or the data set was cleared), the answer is "410 Gone" and the
+    // client has to start over from "0".
+    protected Response getDataSet( int numEntries, int hoursBack, String from, String to, String resolution, String since, Request request ) {
+        long cursor = parseCursor( since );
+        Variant variant = request.selectVariant( VARIANTS );
+        boolean binary = variant != null && BINARY_MEDIA_TYPE.isCompatible( variant.getMediaType() );
+        boolean sinceQuery = since != null;
+        boolean rangeQuery = !sinceQuery && ( from != null || to != null || resolution != null );
+        boolean perHourQuery = !sinceQuery && !rangeQuery && !( ( numEntries == 0 && hoursBack == 0 ) || numEntries > 0 );
+        
+        // The per-hour window moves with the clock, so its validators also
+        // depend on the current hour
+        long version = dataSetsDAO.getVersion(deviceId);
+        long lastModified = dataSetsDAO.getLastModified(deviceId);
+        EntityTag tag;
+        if ( perHourQuery ) {
+            long currentHour = Math.floorDiv( System.currentTimeMillis(), 3600_000L );
+            tag = CacheValidators.entityTag( version, binary ? 1 : 0, currentHour );
+            lastModified = Math.max( lastModified, currentHour*3600_000L );
+        } else {
+            tag = CacheValidators.entityTag( version, binary ? 1 : 0 );
+        }
+        Response notModified = CacheValidators.notModified( request, lastModified, tag );
+        if ( notModified != null ) {
+            return Response.fromResponse( notModified ).header( HttpHeaders.VARY, HttpHeaders.ACCEPT ).build();
+        }
+        
+        // The entries are copied out of the data set before the response is
+        // streamed, so a slow client never holds up the ingest
+        DataSeries entries;
+        String nextCursor = null;
+        if ( sinceQuery ) {
+            EntriesSince result = dataSetsDAO.getRawSeriesSince(deviceId, cursor);
+            if ( result.isExpired() ) {
+                return Response.status(Response.Status.GONE).entity("Cursor " + cursor + " has expired, fetch again since 0").build();
+            }
+            entries = result.getEntries();
+            nextCursor = Long.toString( result.getCursor() );
         } else {
-            return dataSetsDAO.getPerHourEntriesCSV(deviceId, hoursBack);
+            entries = readSeries( dataSetsDAO, deviceId, numEntries, hoursBack, rangeQuery ? parseResolution(resolution) : null, parseInstant(from, Long.MIN_VALUE), parseInstant(to, Long.MAX_VALUE) );
         }
+        StreamingOutput body;
+        if ( binary ) {
+            body = output -> {
+                FlightRecorderEvents.RenderEvent event = FlightRecorderEvents.getInstance().beginRender();
+                BinaryWriter writer = new BinaryWriter( output );
+                writer.writeHeader( entries.size() );
+                writer.writeEntries( entries );
+                writer.flush();
+                event.commit( deviceId, "binary", entries.size(), writer.getBytesWritten() );
+            };
+        } else {
+            body = output -> {
+                FlightRecorderEvents.RenderEvent event = FlightRecorderEvents.getInstance().beginRender();
+                CsvWriter writer = new CsvWriter( output );
+                writer.writeHeader();
+                writer.writeRows( entries );
+                writer.flush();
+                event.commit( deviceId, "csv", entries.size(), writer.getBytesWritten() );
+            };
+        }
+        return CacheValidators.ok( body, lastModified, tag )
+            .type( binary ? BINARY_MEDIA_TYPE : MediaType.TEXT_PLAIN_TYPE )
+            .header( HttpHeaders.VARY, HttpHeaders.ACCEPT )
+            .header( NEXT_CURSOR_HEADER, nextCursor )
+            .build();
     }
     
     @DELETE
     @Produces(MediaType.TEXT_PLAIN)
-    public Response deleteDataSet() {
-        dataSetsDAO.clearDataSet(deviceId);
-        return Response.ok().build();
+    public void deleteDataSet( @Suspended AsyncResponse response ) {
+        RequestExecutor.DASHBOARD.submit( response, () -> {
+            dataSetsDAO.clearDataSet(deviceId);
+            return Response.ok().build();
+        } );
     }
     
     @POST
     @Consumes(MediaType.TEXT_PLAIN)
-    public Response addDataPoint( String dataLine ) {
+    public void addDataPoint( String dataLine, @Suspended AsyncResponse response ) {
+        RequestExecutor.DEVICE.submit( response, () -> addDataPoint(dataLine) );
+    }
+    
+    private Response addDataPoint( String dataLine ) {
+        if ( !DataSetsDAO.isValidDeviceId(deviceId) ) {
+            return invalidDeviceId();
+        }
         String[] items = dataLine.split(",");
         double amountRemaining = 0.0;
         double amountConsumed = 0.0;
@@ -88,8 +198,102 @@ public class DataSetResource {
         if ( items.length > 1 ) amountConsumed = Double.parseDouble( items[1].trim() );
         if ( items.length > 2 ) amountAdded = Double.parseDouble( items[2].trim() );
         if ( items.length > 3 ) numRefills = Integer.parseInt( items[3].trim() );
-        DataSetsDAO.getInstance().addToDataSet(deviceId, amountRemaining, amountConsumed, amountAdded, numRefills);
+        // The entry is applied by an ingest writer; when they fall behind, the
+        // device is asked to retry later instead of tying up a request thread
+        if ( !DataSetsDAO.getInstance().offerToDataSet(deviceId, amountRemaining, amountConsumed, amountAdded, numRefills) ) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, 1).build();
+        }
         return Response.ok().build();
     }
+    
+    // Adds many entries at once, one "timestamp,remaining,consumed,added,refills"
+    // line each. Timestamps are epoch seconds or ISO instants, so the CSV
+    // returned by GET can be posted back as is (its header line is skipped).
+    // The whole batch is rejected if any line is malformed.
+    @POST
+    @Path("batch")
+    @Consumes(MediaType.TEXT_PLAIN)
+    @Produces(MediaType.TEXT_PLAIN)
+    public void addDataPoints( String dataLines, @Suspended AsyncResponse response ) {
+        RequestExecutor.DEVICE.submit( response, () -> addDataPoints(dataLines) );
+    }
+    
+    private Response addDataPoints( String dataLines ) {
+        if ( !DataSetsDAO.isValidDeviceId(deviceId) ) {
+            return invalidDeviceId();
+        }
+        String[] lines = dataLines.split("\n");
+        DataSeries entries = new DataSeries( Math.min( lines.length, MAX_BATCH_SIZE ) );
+        for ( int i=0; i<lines.length; i++ ) {
+            String line = lines[i].trim();
+            if ( line.isEmpty() || line.equalsIgnoreCase( CsvWriter.HEADER ) ) continue;
+            if ( entries.size() == MAX_BATCH_SIZE ) {
+                return Response.status(Response.Status.REQUEST_ENTITY_TOO_LARGE).entity("At most " + MAX_BATCH_SIZE + " entries are accepted at once").build();
+            }
+            String[] items = line.split(",");
+            try {
+                if ( items.length != 5 ) {
+                    throw new IllegalArgumentException();
+                }
+                String timestamp = items[0].trim();
+                entries.add( 
+                    timestamp.indexOf('T') >= 0 ? Instant.parse( timestamp ).getEpochSecond() : Long.parseLong( timestamp ),
+                    Double.parseDouble( items[1].trim() ),
+                    Double.parseDouble( items[2].trim() ),
+                    Double.parseDouble( items[3].trim() ),
+                    Integer.parseInt( items[4].trim() )
+                );
+            } catch ( IllegalArgumentException | DateTimeParseException ex ) {
+                return Response.status(Response.Status.BAD_REQUEST).entity("Invalid entry on line " + (i+1) + ": " + line).build();
+            }
+        }
+        IngestResult result = dataSetsDAO.addAllToDataSet(deviceId, entries);
+        return Response.ok( "accepted,duplicates,rejected\n" + result.getAccepted() + "," + result.getDuplicates() + "," + result.getRejected() + "\n" ).build();
+    }
+    
+    private static Response invalidDeviceId() {
+        return Response.status(Response.Status.BAD_REQUEST).entity("Device ID is too long").build();
+    }
+    
+    // Reads what a query without "since" asks for: the [from, to) range at the
+    // given resolution, if there is one, otherwise the last numEntries raw
+    // entries or the aggregates of the last hoursBack hours
+    static DataSeries readSeries( DataSetsDAO dataSetsDAO, String deviceId, int numEntries, int hoursBack, Resolution resolution, long from, long to ) {
+        if ( resolution != null ) {
+            return dataSetsDAO.getSeries(deviceId, resolution, from, to);
+        } else if ( numEntries > 0 || ( numEntries == 0 && hoursBack == 0 ) ) {
+            return dataSetsDAO.getLastRawSeries(deviceId, numEntries);
+        } else {
+            return dataSetsDAO.getPerHourSeries(deviceId, hoursBack);
+        }
+    }
+    
+    static Resolution parseResolution( String value ) {
+        if ( value == null || value.isEmpty() ) return Resolution.RAW;
+        try {
+            return Resolution.valueOf( value.toUpperCase( Locale.ROOT ) );
+        } catch ( IllegalArgumentException ex ) {
+            throw new WebApplicationException( Response.status(Response.Status.BAD_REQUEST).entity("Invalid resolution: " + value).build() );
+        }
+    }
+    
+    private static long parseCursor( String value ) {
+        if ( value == null || value.isEmpty() ) return 0;
+        try {
+            return Long.parseLong( value );
+        } catch ( NumberFormatException ex ) {
+            throw new WebApplicationException( Response.status(Response.Status.BAD_REQUEST).entity("Invalid cursor: " + value).build() );
+        }
+    }
+    
+    // Parses an ISO instant (e.g. "2017-06-01T12:00:00Z") into epoch seconds
+    static long parseInstant( String value, long defaultValue ) {
+        if ( value == null || value.isEmpty() ) return defaultValue;
+        try {
+            return Instant.parse( value ).getEpochSecond();
+        } catch ( DateTimeParseException ex ) {
+            throw new WebApplicationException( Response.status(Response.Status.BAD_REQUEST).entity("Invalid instant: " + value).build() );
+        }
+    }
         
 }
@@ -0,0 +1,206 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+// A single dashboard's server-sent event stream of a data set. Changes are
+// put on a bounded queue and written with non-blocking I/O by the stream
+// executor, so a slow dashboard never holds up the ingest. When the queue
+// overflows, the dashboard is considered too slow and the stream is closed;
+// EventSource reconnects by itself.
+final class DataSetStream implements DataSetListener, WriteListener, AsyncListener {
+
+    private static final Logger LOGGER = Logger.getLogger( DataSetStream.class.getName() );
+
+    private static final Event HEARTBEAT = new Event( ":\n", null );
+    private static final Event CLEARED = new Event( "event: clear\ndata:\n", null );
+
+    private final String deviceId;
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream out;
+    private final Executor executor;
+    private final Consumer <DataSetStream> onClose;
+    private final BlockingQueue <Event> pendingEvents;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final ByteArrayOutputStream eventBuffer = new ByteArrayOutputStream( 256 );
+    private final CsvWriter eventWriter = new CsvWriter( eventBuffer );
+    private volatile boolean closed;
+
+    DataSetStream( String deviceId, AsyncContext asyncContext, Executor executor, int maxPendingEvents, Consumer <DataSetStream> onClose ) throws IOException {
+        this.deviceId = deviceId;
+        this.asyncContext = asyncContext;
+        this.out = asyncContext.getResponse().getOutputStream();
+        this.executor = executor;
+        this.onClose = onClose;
+        this.pendingEvents = new ArrayBlockingQueue<>( maxPendingEvents );
+    }
+
+    String getDeviceId() {
+        return deviceId;
+    }
+
+    // Starts writing; the container calls onWritePossible() once it is ready
+    void start() {
+        asyncContext.addListener( this );
+        out.setWriteListener( this );
+    }
+
+    void sendHeartbeat() {
+        offer( HEARTBEAT );
+    }
+
+    @Override
+    public void entryAdded( String deviceId, DataSetEntry entry, DataSetEntry hourlyEntry ) {
+        offer( new Event( "event: entry\ndata: ", entry ) );
+        if ( hourlyEntry != null ) {
+            offer( new Event( "event: hour\ndata: ", hourlyEntry ) );
+        }
+    }
+
+    @Override
+    public void dataSetCleared( String deviceId ) {
+        offer( CLEARED );
+    }
+
+    @Override
+    public void onWritePossible() {
+        drain();
+    }
+
+    @Override
+    public void onError( Throwable t ) {
+        LOGGER.log( Level.FINE, "Data set stream failed", t );
+        close();
+    }
+
+    @Override
+    public void onComplete( AsyncEvent event ) {
+        close();
+    }
+
+    @Override
+    public void onTimeout( AsyncEvent event ) {
+        close();
+    }
+
+    @Override
+    public void onError( AsyncEvent event ) {
+        close();
+    }
+
+    @Override
+    public void onStartAsync( AsyncEvent event ) {
+    }
+
+    void close() {
+        if ( closed ) return;
+        closed = true;
+        onClose.accept( this );
+        try {
+            asyncContext.complete();
+        } catch ( IllegalStateException ex ) {
+            // Already completed
+        }
+    }
+
+    private void offer( Event event ) {
+        if ( closed ) return;
+        if ( !pendingEvents.offer( event ) ) {
+            LOGGER.log( Level.FINE, "Closing the stream of data set {0}, the client cannot keep up", deviceId );
+            close();
+            return;
+        }
+        if ( drainScheduled.compareAndSet( false, true ) ) {
+            try {
+                executor.execute( this::drain );
+            } catch ( RejectedExecutionException ex ) {
+                close();
+            }
+        }
+    }
+
+    // Writes as many pending events as the output takes without blocking. If it
+    // takes less, the container calls onWritePossible() when it can take more.
+    private synchronized void drain() {
+        drainScheduled.set( false );
+        try {
+            boolean written = false;
+            while ( !closed && out.isReady() ) {
+                Event event = pendingEvents.poll();
+                if ( event == null ) break;
+                out.write( event.encode( eventBuffer, eventWriter ) );
+                written = true;
+            }
+            if ( written && !closed && out.isReady() ) {
+                out.flush();
+            }
+        } catch ( IOException | IllegalStateException ex ) {
+            LOGGER.log( Level.FINE, "Cannot write to the stream of data set " + deviceId, ex );
+            close();
+        }
+    }
+
+    private static final class Event {
+
+        final byte[] prefix;
+        final DataSetEntry entry;  // Written as a CSV row after the prefix
+
+        Event( String prefix, DataSetEntry entry ) {
+            this.prefix = prefix.getBytes( StandardCharsets.US_ASCII );
+            this.entry = entry;
+        }
+
+        byte[] encode( ByteArrayOutputStream buffer, CsvWriter writer ) throws IOException {
+            buffer.reset();
+            buffer.write( prefix );
+            if ( entry != null ) {
+                writer.writeRow( entry.getTimestamp(), entry.getAmountRemaining(), entry.getAmountConsumed(), entry.getAmountAdded(), entry.getNumRefills() );
+                writer.flush();
+            }
+            buffer.write( '\n' );  // An empty line ends the event
+            return buffer.toByteArray();
+        }
+
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.AsyncContext;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+// Streams the new entries of a data set to dashboards as server-sent events:
+// "entry" with every new entry, "hour" with the hourly aggregate it went into
+// (both as CSV rows in the format of GET /dataSets/{id}) and "clear" when the
+// data set is cleared. Idle streams cost nothing but a heartbeat comment now
+// and then, which also lets the container notice closed connections.
+@WebServlet( urlPatterns = "/dataSetStreams/*", asyncSupported = true )
+public class DataSetStreamServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAX_STREAMS = Integer.getInteger( "sbl.dataSets.maxStreams", 1000 );
+    private static final int MAX_PENDING_EVENTS = Integer.getInteger( "sbl.dataSets.maxPendingStreamEvents", 256 );
+    private static final long HEARTBEAT_SECONDS = 20;
+    private static final int WRITER_COUNT = 2;
+
+    private final Set <DataSetStream> streams = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger threadNumber = new AtomicInteger();
+    private ExecutorService writers;
+    private ScheduledExecutorService heartbeat;
+
+    @Override
+    public void init() {
+        writers = Executors.newFixedThreadPool( WRITER_COUNT, r -> {
+            Thread t = new Thread( r, "sbl-stream-writer-" + threadNumber.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        } );
+        heartbeat = Executors.newSingleThreadScheduledExecutor( r -> {
+            Thread t = new Thread( r, "sbl-stream-heartbeat" );
+            t.setDaemon( true );
+            return t;
+        } );
+        heartbeat.scheduleWithFixedDelay( () -> streams.forEach( DataSetStream::sendHeartbeat ), HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS );
+    }
+
+    @Override
+    public void destroy() {
+        heartbeat.shutdown();
+        streams.forEach( DataSetStream::close );
+        writers.shutdown();
+    }
+
+    @Override
+    protected void doGet( HttpServletRequest request, HttpServletResponse response ) throws IOException {
+        String pathInfo = request.getPathInfo();
+        if ( pathInfo == null || pathInfo.length() < 2 || pathInfo.indexOf( '/', 1 ) >= 0 ) {
+            response.sendError( HttpServletResponse.SC_NOT_FOUND );
+            return;
+        }
+        if ( streams.size() >= MAX_STREAMS ) {
+            response.setHeader( "Retry-After", "10" );
+            response.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+            return;
+        }
+        // Data sets are kept under lower case IDs, see DataSetResource
+        String deviceId = pathInfo.substring(1).toLowerCase();
+
+        response.setContentType( "text/event-stream" );
+        response.setCharacterEncoding( "UTF-8" );
+        response.setHeader( "Cache-Control", "no-cache" );
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout( 0 );
+        DataSetStream stream = new DataSetStream( deviceId, asyncContext, writers, MAX_PENDING_EVENTS, s -> {
+            streams.remove( s );
+            DataSetsDAO.getInstance().removeListener( s.getDeviceId(), s );
+        } );
+        streams.add( stream );
+        DataSetsDAO.getInstance().addListener( deviceId, stream );
+        stream.start();
+        stream.sendHeartbeat();  // Gets the headers out right away
+    }
+
+}
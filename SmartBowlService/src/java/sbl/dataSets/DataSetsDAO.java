@@ -26,168 +26,431 @@ SOFTWARE.
 
 package sbl.dataSets;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.ws.rs.core.Response;
+import sbl.metrics.FlightRecorderEvents;
+import sbl.metrics.Metrics;
 
 public class DataSetsDAO {
     
-    private static final DateTimeFormatter DATETIME_FORMATTER = DateTimeFormatter.ISO_INSTANT;
+    private static final Logger LOGGER = Logger.getLogger( DataSetsDAO.class.getName() );
     private static final ZoneId UTC_ZONE = ZoneId.of("UTC");    
-    private static final DataSetsDAO INSTANCE = new DataSetsDAO();
-    private static final int MAX_ENTRY_COUNT = 30000;
-    private static final String CSV_HEADER = "time,amount,consumed,added,refills";
+    private static final DataSeries EMPTY_SERIES = new DataSeries( 0 );
+    
+    // Retention limits of the storage tiers, in entries. The aggregate tiers
+    // only store buckets that actually received data. Raw entries are kept
+    // compressed, so three months of one reading a minute take less memory
+    // than the 30000 uncompressed entries that used to be the limit.
+    private static final int MAX_ENTRY_COUNT = Integer.getInteger( "sbl.dataSets.maxEntryCount", 60*24*92 );
+    private static final int MAX_MINUTE_COUNT = Integer.getInteger( "sbl.dataSets.maxMinuteCount", 60*24*7 );
+    private static final int MAX_HOUR_COUNT = Integer.getInteger( "sbl.dataSets.maxHourCount", 24*92 );
+    private static final int MAX_DAY_COUNT = Integer.getInteger( "sbl.dataSets.maxDayCount", 366*5 );
+    
+    // Data sets are only persisted when a data directory is configured
+    private static final String DATA_DIR = System.getProperty( "sbl.dataDir" );
+    private static final long LOG_FLUSH_INTERVAL_MILLIS = Long.getLong( "sbl.dataSets.logFlushIntervalMillis", 50 );
+    private static final long SNAPSHOT_INTERVAL_MINUTES = Long.getLong( "sbl.dataSets.snapshotIntervalMinutes", 10 );
+    
+    private static final int INGEST_WRITER_COUNT = Integer.getInteger( "sbl.dataSets.ingestWriterCount", 1 );
+    private static final int INGEST_QUEUE_CAPACITY = Integer.getInteger( "sbl.dataSets.ingestQueueCapacity", 65536 );
+    private static final int INGEST_MAX_BATCH_SIZE = Integer.getInteger( "sbl.dataSets.ingestMaxBatchSize", 1024 );
+    private static final long READ_YOUR_WRITES_TIMEOUT_MILLIS = 1000;
     
     public static DataSetsDAO getInstance() {
-        return INSTANCE;
+        return InstanceHolder.INSTANCE;
+    }
+    
+    // Restoring the persisted data sets uses other threads, so it must not run
+    // while DataSetsDAO itself is still being initialized
+    private static final class InstanceHolder {
+        static final DataSetsDAO INSTANCE = new DataSetsDAO();
+    }
+    
+    private final ConcurrentMap <String, DataSet> dataSetLookup = new ConcurrentHashMap<>();
+    private final DataSetEvents events = new DataSetEvents();
+    private final SegmentLog log;
+    private final SnapshotStore snapshots;
+    private final ScheduledExecutorService snapshotScheduler;
+    private final IngestPipeline ingestPipeline;
+    private long startupMillis;
+    private boolean keepWholeLog;  // Set when a damaged snapshot is still in place
+    
+    private DataSetsDAO() {
+        if ( DATA_DIR != null ) {
+            File directory = new File( DATA_DIR, "dataSets" );
+            log = new SegmentLog( directory, LOG_FLUSH_INTERVAL_MILLIS, TimeUnit.DAYS.toMillis( MAX_DAY_COUNT ) );
+            snapshots = new SnapshotStore( directory );
+            restore();
+            snapshotScheduler = Executors.newSingleThreadScheduledExecutor( r -> {
+                Thread t = new Thread( r, "sbl-snapshot-writer" );
+                t.setDaemon( true );
+                return t;
+            } );
+            snapshotScheduler.scheduleWithFixedDelay( this::writeSnapshotQuietly, SNAPSHOT_INTERVAL_MINUTES, SNAPSHOT_INTERVAL_MINUTES, TimeUnit.MINUTES );
+        } else {
+            log = null;
+            snapshots = null;
+            snapshotScheduler = null;
+        }
+        ingestPipeline = new IngestPipeline( this::getOrCreateDataSet, log, INGEST_WRITER_COUNT, INGEST_QUEUE_CAPACITY, INGEST_MAX_BATCH_SIZE );
+        registerMetrics();
     }
     
-    private final Map <String, Queue<DataSetEntry>> dataSetLookup = new HashMap<>();
+    // Applies the queued entries and writes a final snapshot, then flushes and
+    // closes the log
+    public void close() {
+        ingestPipeline.close();
+        if ( log != null ) {
+            snapshotScheduler.shutdown();
+            try {
+                snapshotScheduler.awaitTermination( 1, TimeUnit.MINUTES );
+            } catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+            }
+            writeSnapshotQuietly();
+            log.close();
+        }
+    }
+    
+    // Time it took to restore the persisted data sets on startup
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+    
+    // Loads the latest usable snapshot and replays the log records written after it
+    private void restore() {
+        long start = System.nanoTime();
+        long startSequence = loadSnapshot( snapshots.getLatestFile() );
+        if ( startSequence == SnapshotStore.NO_SNAPSHOT ) {
+            startSequence = loadSnapshot( snapshots.getPreviousFile() );
+        }
+        long snapshotMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime()-start );
+        int snapshotCount = dataSetLookup.size();
+        long count = log.replay( Math.max( 0, startSequence ), new SegmentLog.Replayer() {
+            @Override
+            public void entry( long sequence, String deviceId, long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int numRefills ) {
+                getOrCreateDataSet( deviceId ).replay( sequence, timestamp, amountRemaining, amountConsumed, amountAdded, numRefills );
+            }
+            @Override
+            public void clear( long sequence, String deviceId ) {
+                getOrCreateDataSet( deviceId ).replayClear( sequence );
+            }
+        } );
+        startupMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime()-start );
+        LOGGER.log( Level.INFO, "Loaded {0} data sets from the snapshot in {1} ms and replayed {2} log records in {3} ms", 
+            new Object[] { snapshotCount, snapshotMillis, count, startupMillis-snapshotMillis } );
+    }
+    
+    private long loadSnapshot( File file ) {
+        try {
+            return snapshots.load( file, this::getOrCreateDataSet );
+        } catch ( IOException | RuntimeException ex ) {
+            LOGGER.log( Level.WARNING, "Cannot load snapshot " + file, ex );
+            dataSetLookup.clear();
+            try {
+                snapshots.quarantine( file );
+            } catch ( IOException quarantineEx ) {
+                LOGGER.log( Level.WARNING, "Cannot move snapshot " + file + " aside", quarantineEx );
+                keepWholeLog = true;
+            }
+            return SnapshotStore.NO_SNAPSHOT;
+        }
+    }
+    
+    // Once a new snapshot is in place, the log is only needed from the start of
+    // the previous one, which is kept as a fallback. The previous snapshot is
+    // the one that was the latest so far, so it was either loaded on startup
+    // or checked after it was written; snapshots that fail either are moved
+    // aside. If a snapshot could not be moved aside, the log is kept whole.
+    private void writeSnapshotQuietly() {
+        try {
+            long start = System.nanoTime();
+            snapshots.write( log.getNextSequence(), dataSetLookup.values() );
+            long previousStart = snapshots.readStartSequence( snapshots.getPreviousFile() );
+            if ( previousStart != SnapshotStore.NO_SNAPSHOT && !keepWholeLog ) {
+                log.deleteSegmentsBefore( previousStart );
+            }
+            LOGGER.log( Level.FINE, "Wrote snapshot of {0} data sets in {1} ms", 
+                new Object[] { dataSetLookup.size(), TimeUnit.NANOSECONDS.toMillis( System.nanoTime()-start ) } );
+        } catch ( IOException | RuntimeException ex ) {
+            LOGGER.log( Level.SEVERE, "Cannot write data set snapshot", ex );
+        }
+    }
     
-    private DataSetsDAO() {};
+    // IDs of all the devices that have a data set, sorted
+    public Set<String> getDeviceIds() {
+        return Collections.unmodifiableSet( new TreeSet<>( dataSetLookup.keySet() ) );
+    }
     
-    public synchronized List <DataSetEntry> getDataSet( String deviceId ) {
-        Queue <DataSetEntry> dataSet = dataSetLookup.get(deviceId);
+    public List <DataSetEntry> getDataSet( String deviceId ) {
+        DataSet dataSet = dataSetLookup.get(deviceId);
         if ( dataSet != null ) {
-            return new ArrayList<>( dataSet );
+            return getEntries( dataSet.getRawEntries() );
         } else {
             return new ArrayList<>();
         }
     }
     
-    public synchronized void clearDataSet( String deviceId ) {
-        Queue <DataSetEntry> dataSet = dataSetLookup.get(deviceId);
+    public void clearDataSet( String deviceId ) {
+        DataSet dataSet = dataSetLookup.get(deviceId);
         if ( dataSet != null ) {
             dataSet.clear();
         }
     }
     
-    public synchronized void addToDataSet( String deviceId, double amountRemaining, double amountConsumed, double amountAdded, int numRefills ) {
+    // Version of the device's data set, "0" if there is none yet. It changes
+    // with every change of the data set, but only within one run of the service.
+    public long getVersion( String deviceId ) {
+        DataSet dataSet = dataSetLookup.get( deviceId );
+        return dataSet != null ? dataSet.getVersion() : 0;
+    }
+    
+    // Time of the last change of the device's data set, "0" if there is none
+    public long getLastModified( String deviceId ) {
+        DataSet dataSet = dataSetLookup.get( deviceId );
+        return dataSet != null ? dataSet.getLastModifiedMillis() : 0;
+    }
+    
+    // Whether entries can be stored for the device; its ID has to fit into a
+    // log record, see SegmentLog. Checked by the resources before anything is
+    // added, so that no data set is created for an ID that cannot be stored.
+    public static boolean isValidDeviceId( String deviceId ) {
+        return deviceId.getBytes( StandardCharsets.UTF_8 ).length <= SegmentLog.MAX_DEVICE_ID_LENGTH;
+    }
+    
+    public void addToDataSet( String deviceId, double amountRemaining, double amountConsumed, double amountAdded, int numRefills ) {
         ZonedDateTime utcNow = ZonedDateTime.now( UTC_ZONE );
         long timestamp = utcNow.toEpochSecond();
         addToDataSet( deviceId, timestamp, amountRemaining, amountConsumed, amountAdded, numRefills);
     }
     
+    // Queues an entry stamped with the current time, to be added to the data set
+    // by an ingest writer. Returns false if the ingest queue is full.
+    public boolean offerToDataSet( String deviceId, double amountRemaining, double amountConsumed, double amountAdded, int numRefills ) {
+        return ingestPipeline.offer( deviceId, Instant.now().getEpochSecond(), amountRemaining, amountConsumed, amountAdded, numRefills );
+    }
+    
+    // Waits (up to a second) until the entries queued for the device so far are
+    // applied, so that a device sees the effect of what it just uploaded
+    public void awaitPendingEntries( String deviceId ) {
+        ingestPipeline.awaitApplied( deviceId, READ_YOUR_WRITES_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS );
+    }
+    
+    // The listener is told about every entry added to the device's data set
+    // from now on, see DataSetListener
+    public void addListener( String deviceId, DataSetListener listener ) {
+        events.addListener( deviceId, listener );
+    }
+    
+    public void removeListener( String deviceId, DataSetListener listener ) {
+        events.removeListener( deviceId, listener );
+    }
+    
+    public IngestPipelineMXBean getIngestStatistics() {
+        return ingestPipeline;
+    }
+    
+    // Number of entries held in all the tiers of all the data sets
+    public long getSampleCount() {
+        long ret = 0;
+        for ( DataSet dataSet : dataSetLookup.values() ) {
+            ret += dataSet.getSampleCount();
+        }
+        return ret;
+    }
+    
+    // Estimated memory taken by the entries of all the data sets
+    public long getSizeInBytes() {
+        long ret = 0;
+        for ( DataSet dataSet : dataSetLookup.values() ) {
+            ret += dataSet.getSizeInBytes();
+        }
+        return ret;
+    }
+    
+    // Adds entries with their own timestamps (epoch seconds), e.g. the readings
+    // a device buffered while it was offline, taking the device's lock once
+    IngestResult addAllToDataSet( String deviceId, DataSeries entries ) {
+        return getOrCreateDataSet( deviceId ).addAll( entries );
+    }
+    
     public List<DataSetEntry> getRawEntries( String deviceId, ZonedDateTime from ) {
         return getRawEntries( deviceId, from, ZonedDateTime.now(from.getZone()) );
     }
     
     public List<DataSetEntry> getRawEntries( String deviceId, ZonedDateTime from, ZonedDateTime to ) {
-        Queue<DataSetEntry> dataSet = dataSetLookup.get( deviceId );
-        if ( dataSet == null ) return new ArrayList<>();
-        List <DataSetEntry> ret = dataSet.stream().filter( dse -> {
-            ZonedDateTime timestamp = ZonedDateTime.ofInstant( Instant.ofEpochSecond( dse.getTimestamp() ), UTC_ZONE );
-            return timestamp.isAfter( from ) && timestamp.isBefore( to );            
-        } ).collect(
-            Collectors.toList()
-        );
-        return ret;
+        // Both ends are exclusive; timestamps are whole seconds
+        long fromSecond = from.toEpochSecond() + 1;
+        long toSecond = to.getNano() > 0 ? to.toEpochSecond() + 1 : to.toEpochSecond();
+        return getRawEntries( deviceId, fromSecond, toSecond );
+    }
+    
+    // Returns the entries with timestamps (epoch seconds) in the [from, to) range
+    public List<DataSetEntry> getRawEntries( String deviceId, long from, long to ) {
+        return getEntries( getRawSeries( deviceId, from, to ) );
     }
     
     public List<DataSetEntry> getRawEntries( String deviceId, int numEntries ) {
-        Queue<DataSetEntry> dataSet = dataSetLookup.get( deviceId );
-        if ( dataSet == null ) return new ArrayList<>();
-        
-        List<DataSetEntry> entries = new ArrayList<>(dataSet);
-        
-        int offset;
-        // Passing "0" or a negative value causes the service to return the whole series
-        if ( numEntries <= 0 ) numEntries = entries.size();
-        
-        if ( numEntries < entries.size() ) {
-            offset = entries.size() - numEntries;
-        } else {
-            offset = 0;
-            numEntries = entries.size();
-        }
-        
-        List <DataSetEntry> ret = new ArrayList<>();
-        for ( int i=0; i<numEntries; i++ ) {
-            ret.add( entries.get( offset+i ) );
-        }
-        return ret;
+        return getEntries( getLastRawSeries( deviceId, numEntries ) );
     }
     
     public String getRawEntriesCSV( String deviceId, int numEntries ) {
-        Queue<DataSetEntry> dataSet = dataSetLookup.get( deviceId );
-        StringBuilder b = new StringBuilder();
-        b.append( CSV_HEADER ).append( "\n" );
-        if ( dataSet != null ) {            
-            dataSet.forEach( e -> appendCsvRow(b, e) );
-        }
-        return b.toString();
+        return toCSV( deviceId, getLastRawSeries( deviceId, numEntries ) );
+    }
+    
+    public String getRawEntriesCSV( String deviceId, long from, long to ) {
+        return toCSV( deviceId, getRawSeries( deviceId, from, to ) );
+    }
+    
+    // Returns the entries in the [from, to) range (epoch seconds) aggregated
+    // to roughly the given resolution
+    public List<DataSetEntry> getEntries( String deviceId, Resolution resolution, long from, long to ) {
+        return getEntries( getSeries( deviceId, resolution, from, to ) );
+    }
+    
+    public String getEntriesCSV( String deviceId, Resolution resolution, long from, long to ) {
+        return toCSV( deviceId, getSeries( deviceId, resolution, from, to ) );
     }
     
     public List<DataSetEntry> getPerHourEntries( String deviceId, int hoursBack ) {
-        if ( hoursBack <= 0 ) return new ArrayList<>();
-        
-        List<DataSetEntry> entries = new ArrayList<>(dataSetLookup.get( deviceId ));
-        ZonedDateTime utcNow = ZonedDateTime.now();
-        ZonedDateTime utcStartTime = utcNow.minusHours(hoursBack);
-        
-        List <DataSetEntry> ret = entries
-            .stream()
-            .filter( dse -> ZonedDateTime.ofInstant( Instant.ofEpochSecond( dse.getTimestamp() ), UTC_ZONE ).isAfter( utcStartTime ) )
-            .collect( Collectors.groupingBy( dse -> ZonedDateTime.ofInstant( Instant.ofEpochSecond( dse.getTimestamp() ), UTC_ZONE ).getHour() ))
-            .entrySet()
-            .stream()
-            .map(e -> e.getValue().stream()
-                .reduce( (dse1,dse2) -> new DataSetEntry(
-                    Math.max( dse1.getTimestamp(), dse2.getTimestamp() ),
-                    dse1.getTimestamp() > dse2.getTimestamp() ? dse1.getAmountRemaining() : dse2.getAmountRemaining(),
-                    dse1.getAmountConsumed()+dse2.getAmountConsumed(),
-                    dse1.getAmountAdded()+dse2.getAmountAdded(),
-                    dse1.getNumRefills()+dse2.getNumRefills()
-            ) ) )
-            .map(f -> f.get())
-            .sorted( (dse1,dse2) -> Long.compare(dse1.getTimestamp(), dse2.getTimestamp()) )
-            .collect(
-                Collectors.toList()
-            );
-        
-        return ret;
+        return getEntries( getPerHourSeries( deviceId, hoursBack ) );
     }
     
     public String getPerHourEntriesCSV( String deviceId, int hoursBack ) {
-        List <DataSetEntry> entries = getPerHourEntries(deviceId, hoursBack);
-        StringBuilder b = new StringBuilder();
-        b.append( CSV_HEADER ).append( "\n" );
-        entries.forEach( dse -> appendCsvRow(b, dse) );        
-        return b.toString();
+        return toCSV( deviceId, getPerHourSeries( deviceId, hoursBack ) );
     }
     
-    protected synchronized void addToDataSet( String deviceId, long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int numRefills ) {
-        Queue <DataSetEntry> dataSet = dataSetLookup.get(deviceId);
-        if ( dataSet == null ) {
-            dataSet = new LinkedList<>();
-            dataSetLookup.put(deviceId, dataSet);
+    // Returns the amount consumed during the day in the given zone that contains
+    // the given instant (epoch seconds). The total is maintained on ingest, so
+    // this takes constant time no matter how many entries the day has.
+    public DailyConsumption getDailyConsumption( String deviceId, ZoneId zone, long timestamp ) {
+        DataSet dataSet = dataSetLookup.get( deviceId );
+        if ( dataSet == null ) return DailyConsumption.of( zone, timestamp, 0 );
+        return dataSet.getDailyConsumption( zone, timestamp );
+    }
+    
+    // Passing "0" or a negative value returns the whole series
+    DataSeries getLastRawSeries( String deviceId, int numEntries ) {
+        DataSet dataSet = dataSetLookup.get( deviceId );
+        if ( dataSet == null ) return EMPTY_SERIES;
+        return dataSet.getLastRawEntries( numEntries );
+    }
+    
+    DataSeries getRawSeries( String deviceId, long from, long to ) {
+        DataSet dataSet = dataSetLookup.get( deviceId );
+        if ( dataSet == null ) return EMPTY_SERIES;
+        return dataSet.getRawEntries( from, to );
+    }
+    
+    DataSeries getSeries( String deviceId, Resolution resolution, long from, long to ) {
+        DataSet dataSet = dataSetLookup.get( deviceId );
+        if ( dataSet == null ) return EMPTY_SERIES;
+        return dataSet.getEntries( resolution, from, to );
+    }
+    
+    EntriesSince getRawSeriesSince( String deviceId, long cursor ) {
+        DataSet dataSet = dataSetLookup.get( deviceId );
+        if ( dataSet == null ) return new EntriesSince( EMPTY_SERIES, 0, cursor > 0 );
+        return dataSet.getRawEntriesSince( cursor );
+    }
+    
+    // Sums the hourly or daily aggregates of the given devices (of all of them
+    // for null) over the buckets overlapping the [from, to) range. The data
+    // sets are summed in parallel on the common fork-join pool.
+    FleetTotals getFleetTotals( Collection<String> deviceIds, Resolution resolution, long from, long to ) {
+        return getFleetTotals( ForkJoinPool.commonPool(), deviceIds, resolution, from, to );
+    }
+    
+    FleetTotals getFleetTotals( ForkJoinPool pool, Collection<String> deviceIds, Resolution resolution, long from, long to ) {
+        List <DataSet> dataSets = new ArrayList<>();
+        if ( deviceIds == null ) {
+            dataSets.addAll( dataSetLookup.values() );
+        } else {
+            for ( String deviceId : deviceIds ) {
+                DataSet dataSet = dataSetLookup.get( deviceId );
+                if ( dataSet != null ) {
+                    dataSets.add( dataSet );
+                }
+            }
         }
-        dataSet.add( new DataSetEntry(timestamp, amountRemaining, amountConsumed, amountAdded, numRefills ) );
-        if ( dataSet.size() > MAX_ENTRY_COUNT ) {
-            dataSet.poll();
+        return FleetAggregation.sum( pool, dataSets, resolution, from, to );
+    }
+    
+    // Returns the aggregates of the last hoursBack hours, including the current one
+    DataSeries getPerHourSeries( String deviceId, int hoursBack ) {
+        DataSet dataSet = dataSetLookup.get( deviceId );
+        if ( hoursBack <= 0 || dataSet == null ) return EMPTY_SERIES;
+        long currentHour = Math.floorDiv( Instant.now().getEpochSecond(), 3600 );
+        return dataSet.getEntries( Resolution.HOUR, (currentHour - hoursBack + 1)*3600, Long.MAX_VALUE );
+    }
+    
+    protected void addToDataSet( String deviceId, long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int numRefills ) {
+        getOrCreateDataSet( deviceId ).add( timestamp, amountRemaining, amountConsumed, amountAdded, numRefills );
+    }
+    
+    private void registerMetrics() {
+        Metrics metrics = Metrics.getInstance();
+        metrics.gauge( "sbl_data_sets", "Number of devices with a data set", dataSetLookup::size );
+        metrics.gauge( "sbl_data_set_samples", "Entries held in all the tiers of all the data sets", this::getSampleCount );
+        metrics.gauge( "sbl_data_set_bytes", "Estimated memory taken by the entries of all the data sets", this::getSizeInBytes );
+        metrics.gauge( "sbl_data_set_bytes_per_device", "Estimated memory taken by the entries of an average data set", () -> {
+            int count = dataSetLookup.size();
+            return count == 0 ? 0 : getSizeInBytes()/(double) count;
+        } );
+        metrics.gauge( "sbl_ingest_queue_depth", "Uploaded readings waiting for an ingest writer", ingestPipeline::getQueueDepth );
+        metrics.counter( "sbl_ingest_rejected_entries_total", "Uploaded readings refused because the queue of their ingest writer was full", ingestPipeline::getRejectedCount );
+    }
+    
+    private DataSet getOrCreateDataSet( String deviceId ) {
+        DataSet dataSet = dataSetLookup.get(deviceId);
+        if ( dataSet == null ) {
+            dataSet = dataSetLookup.computeIfAbsent( deviceId, id -> new DataSet( id, log, events, MAX_ENTRY_COUNT, MAX_MINUTE_COUNT, MAX_HOUR_COUNT, MAX_DAY_COUNT ) );
         }
+        return dataSet;
     }
     
-    private String formatDateTime( DataSetEntry e ) {
-        ZonedDateTime dateTime = ZonedDateTime.ofInstant( Instant.ofEpochSecond( e.getTimestamp() ), UTC_ZONE );
-        return dateTime.format(DATETIME_FORMATTER);
+    private List<DataSetEntry> getEntries( DataSeries entries ) {
+        List <DataSetEntry> ret = new ArrayList<>( entries.size() );
+        for ( int i=0; i<entries.size(); i++ ) {
+            ret.add( entries.getEntry(i) );
+        }
+        return ret;
     }
     
-    private void appendCsvRow( StringBuilder b, DataSetEntry e ) {
-        b.append( formatDateTime(e) ).append(",")
-            .append( String.format( "%.2f", e.getAmountRemaining() ) ).append(",")
-            .append( String.format( "%.2f", e.getAmountConsumed() ) ).append(",")
-            .append( String.format( "%.2f", e.getAmountAdded() ) ).append(",")
-            .append( String.format( "%d", e.getNumRefills() ) ).append("\n");
-    }    
+    private String toCSV( String deviceId, DataSeries entries ) {
+        FlightRecorderEvents.RenderEvent event = FlightRecorderEvents.getInstance().beginRender();
+        ByteArrayOutputStream out = new ByteArrayOutputStream( 64 + entries.size()*48 );
+        try {
+            CsvWriter writer = new CsvWriter( out );
+            writer.writeHeader();
+            writer.writeRows( entries );
+            writer.flush();
+            event.commit( deviceId, "csv", entries.size(), writer.getBytesWritten() );
+        } catch ( IOException ex ) {
+            throw new UncheckedIOException( ex );
+        }
+        return new String( out.toByteArray(), StandardCharsets.US_ASCII );
+    }
     
 }
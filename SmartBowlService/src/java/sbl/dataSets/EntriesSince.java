@@ -0,0 +1,58 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+// Result of an incremental fetch of raw entries, see DataSet.getRawEntriesSince()
+final class EntriesSince {
+
+    private final DataSeries entries;
+    private final long cursor;
+    private final boolean expired;
+
+    EntriesSince( DataSeries entries, long cursor, boolean expired ) {
+        this.entries = entries;
+        this.cursor = cursor;
+        this.expired = expired;
+    }
+
+    // The entries added after the given cursor, in timestamp order
+    DataSeries getEntries() {
+        return entries;
+    }
+
+    // Cursor to pass to the next fetch
+    long getCursor() {
+        return cursor;
+    }
+
+    // True if some of the entries added after the given cursor are gone (or
+    // the cursor is unknown), so the client has to start over
+    boolean isExpired() {
+        return expired;
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import sbl.metrics.FlightRecorderEvents;
+
+// Sums the aggregates of many data sets by splitting the list of data sets in
+// halves until the parts are small enough to sum on one thread. Every part
+// sums into its own FleetTotals, which are merged on the way back up, so the
+// threads share nothing but the read locks of the data sets.
+final class FleetAggregation extends RecursiveTask<FleetTotals> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAX_DATA_SETS_PER_TASK = 32;
+
+    private final List <DataSet> dataSets;
+    private final int fromIndex;
+    private final int toIndex;
+    private final Resolution resolution;
+    private final long from;
+    private final long to;
+
+    private FleetAggregation( List <DataSet> dataSets, int fromIndex, int toIndex, Resolution resolution, long from, long to ) {
+        this.dataSets = dataSets;
+        this.fromIndex = fromIndex;
+        this.toIndex = toIndex;
+        this.resolution = resolution;
+        this.from = from;
+        this.to = to;
+    }
+
+    static FleetTotals sum( ForkJoinPool pool, List <DataSet> dataSets, Resolution resolution, long from, long to ) {
+        FlightRecorderEvents.AggregationEvent event = FlightRecorderEvents.getInstance().beginAggregation();
+        FleetTotals ret = pool.invoke( new FleetAggregation( dataSets, 0, dataSets.size(), resolution, from, to ) );
+        event.commit( "fleetTotals", null, dataSets.size(), ret.getBucketCount(), 0 );
+        return ret;
+    }
+
+    @Override
+    protected FleetTotals compute() {
+        if ( toIndex - fromIndex <= MAX_DATA_SETS_PER_TASK ) {
+            FleetTotals totals = new FleetTotals( resolution, from, to );
+            for ( int i=fromIndex; i<toIndex; i++ ) {
+                dataSets.get(i).addTotalsTo( totals, from, to );
+            }
+            return totals;
+        }
+        int middle = (fromIndex + toIndex) >>> 1;
+        FleetAggregation left = new FleetAggregation( dataSets, fromIndex, middle, resolution, from, to );
+        left.fork();
+        FleetTotals totals = new FleetAggregation( dataSets, middle, toIndex, resolution, from, to ).compute();
+        totals.addAll( left.join() );
+        return totals;
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.time.Instant;
+import java.util.List;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import sbl.RequestExecutor;
+import sbl.metrics.FlightRecorderEvents;
+
+// Totals of all the bowls, or of the ones listed in "devices"
+@Path("fleet")
+public class FleetResource {
+
+    private static final int DEFAULT_BUCKET_COUNT = 24;
+    private static final int MAX_BUCKET_COUNT = 24*366;
+
+    // Returns the consumed and added amounts and refills of every hour (or
+    // minute or day, see "resolution") summed over the devices, together with
+    // the number of devices that reported in it. Without "from" and "to", the
+    // last 24 buckets up to the current one are returned.
+    @GET
+    @Path("totals")
+    @Produces(MediaType.TEXT_PLAIN)
+    public void getTotals(
+            @DefaultValue("hour") @QueryParam("resolution") String resolution,
+            @QueryParam("from") String from,
+            @QueryParam("to") String to,
+            @QueryParam("devices") String devices,
+            @Suspended AsyncResponse response
+        ) {
+        RequestExecutor.DASHBOARD.submit( response, () -> getTotals(resolution, from, to, devices) );
+    }
+
+    private Response getTotals( String resolutionName, String from, String to, String devices ) {
+        Resolution resolution = DataSetResource.parseResolution( resolutionName );
+        if ( resolution == Resolution.RAW ) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("Totals are available per minute, hour or day").build();
+        }
+        long bucketSeconds = resolution.getSeconds();
+        long defaultTo = (Math.floorDiv( Instant.now().getEpochSecond(), bucketSeconds ) + 1)*bucketSeconds;
+        long toSecond = DataSetResource.parseInstant( to, defaultTo );
+        long fromSecond = DataSetResource.parseInstant( from, toSecond - DEFAULT_BUCKET_COUNT*bucketSeconds );
+        if ( fromSecond >= toSecond || (toSecond - fromSecond)/bucketSeconds > MAX_BUCKET_COUNT ) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("The range has to cover 1 to " + MAX_BUCKET_COUNT + " buckets").build();
+        }
+        List <String> deviceIds = DataSetCollectionResource.parseDeviceIds( devices );
+        FleetTotals totals = DataSetsDAO.getInstance().getFleetTotals( deviceIds.isEmpty() ? null : deviceIds, resolution, fromSecond, toSecond );
+        StreamingOutput body = output -> {
+            FlightRecorderEvents.RenderEvent event = FlightRecorderEvents.getInstance().beginRender();
+            CsvWriter writer = new CsvWriter( output );
+            writer.writeHeader( CsvWriter.TOTALS_HEADER );
+            writer.writeTotals( totals );
+            writer.flush();
+            event.commit( null, "csv", totals.getBucketCount(), writer.getBytesWritten() );
+        };
+        return Response.ok( body ).build();
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+// Consumed and added amounts, refills and reporting devices summed over many
+// data sets, bucket by bucket, over a fixed range of hourly or daily buckets.
+// Buckets are aligned to UTC like the aggregate tiers they are summed from.
+final class FleetTotals {
+
+    private final long bucketSeconds;
+    private final long firstBucket;
+    private final double[] amountsConsumed;
+    private final double[] amountsAdded;
+    private final long[] numRefills;
+    private final int[] deviceCounts;
+
+    // Covers the buckets overlapping the [from, to) range (epoch seconds)
+    FleetTotals( Resolution resolution, long from, long to ) {
+        this.bucketSeconds = resolution.getSeconds();
+        this.firstBucket = Math.floorDiv( from, bucketSeconds );
+        int count = (int) Math.max( 0, Math.floorDiv( to - 1, bucketSeconds ) - firstBucket + 1 );
+        this.amountsConsumed = new double[count];
+        this.amountsAdded = new double[count];
+        this.numRefills = new long[count];
+        this.deviceCounts = new int[count];
+    }
+
+    long getBucketSeconds() {
+        return bucketSeconds;
+    }
+
+    int getBucketCount() {
+        return deviceCounts.length;
+    }
+
+    // Start of the i-th bucket, in epoch seconds
+    long getTimestamp( int i ) {
+        return (firstBucket + i)*bucketSeconds;
+    }
+
+    double getAmountConsumed( int i ) {
+        return amountsConsumed[i];
+    }
+
+    double getAmountAdded( int i ) {
+        return amountsAdded[i];
+    }
+
+    long getNumRefills( int i ) {
+        return numRefills[i];
+    }
+
+    // Number of devices with any entries in the i-th bucket
+    int getDeviceCount( int i ) {
+        return deviceCounts[i];
+    }
+
+    // Adds a single device's aggregate of the bucket holding the timestamp
+    void add( long timestamp, double amountConsumed, double amountAdded, int refills ) {
+        long i = Math.floorDiv( timestamp, bucketSeconds ) - firstBucket;
+        if ( i < 0 || i >= deviceCounts.length ) return;
+        amountsConsumed[(int) i] += amountConsumed;
+        amountsAdded[(int) i] += amountAdded;
+        numRefills[(int) i] += refills;
+        deviceCounts[(int) i]++;
+    }
+
+    // Adds the totals of another part of the fleet over the same range
+    void addAll( FleetTotals other ) {
+        for ( int i=0; i<deviceCounts.length; i++ ) {
+            amountsConsumed[i] += other.amountsConsumed[i];
+            amountsAdded[i] += other.amountsAdded[i];
+            numRefills[i] += other.numRefills[i];
+            deviceCounts[i] += other.deviceCounts[i];
+        }
+    }
+
+}
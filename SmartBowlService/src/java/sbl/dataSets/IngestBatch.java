@@ -0,0 +1,101 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+// Entries taken off an IngestQueue by a writer thread, reused for every batch
+final class IngestBatch {
+
+    private final String[] deviceIds;
+    private final long[] timestamps;
+    private final double[] amountsRemaining;
+    private final double[] amountsConsumed;
+    private final double[] amountsAdded;
+    private final int[] numRefills;
+    private final long[] enqueueNanos;
+    private int size;
+
+    IngestBatch( int capacity ) {
+        deviceIds = new String[capacity];
+        timestamps = new long[capacity];
+        amountsRemaining = new double[capacity];
+        amountsConsumed = new double[capacity];
+        amountsAdded = new double[capacity];
+        numRefills = new int[capacity];
+        enqueueNanos = new long[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void add( String deviceId, long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int refills, long nanos ) {
+        deviceIds[size] = deviceId;
+        timestamps[size] = timestamp;
+        amountsRemaining[size] = amountRemaining;
+        amountsConsumed[size] = amountConsumed;
+        amountsAdded[size] = amountAdded;
+        numRefills[size] = refills;
+        enqueueNanos[size] = nanos;
+        size++;
+    }
+
+    void clear() {
+        for ( int i=0; i<size; i++ ) {
+            deviceIds[i] = null;
+        }
+        size = 0;
+    }
+
+    String getDeviceId( int i ) {
+        return deviceIds[i];
+    }
+
+    long getTimestamp( int i ) {
+        return timestamps[i];
+    }
+
+    double getAmountRemaining( int i ) {
+        return amountsRemaining[i];
+    }
+
+    double getAmountConsumed( int i ) {
+        return amountsConsumed[i];
+    }
+
+    double getAmountAdded( int i ) {
+        return amountsAdded[i];
+    }
+
+    int getNumRefills( int i ) {
+        return numRefills[i];
+    }
+
+    long getEnqueueNanos( int i ) {
+        return enqueueNanos[i];
+    }
+
+}
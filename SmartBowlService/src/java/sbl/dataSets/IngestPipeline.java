@@ -0,0 +1,330 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Decouples ingest from the request threads. Requests only put the entries on
+// a bounded queue and return; writer threads take them off in batches, apply
+// them to the data sets and flush the log once per batch. Every device is
+// served by the same writer, so its entries are applied in the order they
+// were queued. Devices with entries on the queue are counted in "pending", so
+// that a device can wait for its own entries without watching the whole queue.
+final class IngestPipeline implements IngestPipelineMXBean {
+
+    private static final Logger LOGGER = Logger.getLogger( IngestPipeline.class.getName() );
+
+    private final Function <String, DataSet> dataSets;
+    private final SegmentLog log;
+    private final int maxBatchSize;
+    private final Writer[] writers;
+    private final ConcurrentMap <String, PendingEntries> pending = new ConcurrentHashMap<>();
+    private final ObjectName objectName;
+    private volatile boolean running = true;
+
+    private final LongAdder enqueuedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder appliedCount = new LongAdder();
+    private final LongAdder batchCount = new LongAdder();
+    private final LongAdder totalDrainLatencyNanos = new LongAdder();
+    private final AtomicLong maxBatch = new AtomicLong();
+    private final AtomicLong maxDrainLatencyNanos = new AtomicLong();
+
+    IngestPipeline( Function <String, DataSet> dataSets, SegmentLog log, int writerCount, int queueCapacity, int maxBatchSize ) {
+        this.dataSets = dataSets;
+        this.log = log;
+        this.maxBatchSize = maxBatchSize;
+        this.writers = new Writer[ Math.max( 1, writerCount ) ];
+        for ( int i=0; i<writers.length; i++ ) {
+            writers[i] = new Writer( i, queueCapacity );
+        }
+        for ( Writer writer : writers ) {
+            writer.thread.start();
+        }
+        this.objectName = registerMXBean();
+    }
+
+    // Returns false if the entry cannot be taken right now
+    boolean offer( String deviceId, long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int numRefills ) {
+        Writer writer = getWriter( deviceId );
+        // Counted before it is queued, so the writer never sees an entry it
+        // does not know about
+        pending.compute( deviceId, IngestPipeline::addOffered );
+        if ( !running || !writer.queue.offer( deviceId, timestamp, amountRemaining, amountConsumed, amountAdded, numRefills ) ) {
+            pending.computeIfPresent( deviceId, IngestPipeline::addApplied );
+            rejectedCount.increment();
+            return false;
+        }
+        enqueuedCount.increment();
+        if ( writer.idle ) {
+            LockSupport.unpark( writer.thread );
+        }
+        return true;
+    }
+
+    // Waits until everything queued so far for the device has been applied, so
+    // that a device reads its own writes. Returns false on timeout.
+    boolean awaitApplied( String deviceId, long timeout, TimeUnit unit ) {
+        PendingEntries entries = pending.get( deviceId );
+        if ( entries == null ) {
+            return true;
+        }
+        long deadline = System.nanoTime() + unit.toNanos( timeout );
+        synchronized ( entries ) {
+            long target = entries.offered;
+            while ( entries.applied < target ) {
+                long remaining = deadline - System.nanoTime();
+                if ( remaining <= 0 ) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait( entries, remaining );
+                } catch ( InterruptedException ex ) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Stops taking new entries and waits until the queued ones are applied
+    void close() {
+        running = false;
+        for ( Writer writer : writers ) {
+            LockSupport.unpark( writer.thread );
+        }
+        for ( Writer writer : writers ) {
+            try {
+                writer.thread.join( TimeUnit.MINUTES.toMillis(1) );
+            } catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if ( objectName != null ) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean( objectName );
+            } catch ( JMException ex ) {
+                LOGGER.log( Level.FINE, "Cannot unregister " + objectName, ex );
+            }
+        }
+    }
+
+    @Override
+    public int getWriterCount() {
+        return writers.length;
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        int ret = 0;
+        for ( Writer writer : writers ) {
+            ret += writer.queue.getCapacity();
+        }
+        return ret;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        int ret = 0;
+        for ( Writer writer : writers ) {
+            ret += writer.queue.size();
+        }
+        return ret;
+    }
+
+    @Override
+    public long getEnqueuedCount() {
+        return enqueuedCount.sum();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    @Override
+    public long getAppliedCount() {
+        return appliedCount.sum();
+    }
+
+    @Override
+    public long getBatchCount() {
+        return batchCount.sum();
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return (int) maxBatch.get();
+    }
+
+    @Override
+    public double getAverageBatchSize() {
+        long batches = batchCount.sum();
+        return batches > 0 ? (double) appliedCount.sum() / batches : 0;
+    }
+
+    @Override
+    public double getAverageDrainLatencyMicros() {
+        long applied = appliedCount.sum();
+        return applied > 0 ? totalDrainLatencyNanos.sum() / 1000.0 / applied : 0;
+    }
+
+    @Override
+    public long getMaxDrainLatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros( maxDrainLatencyNanos.get() );
+    }
+
+    // The entries of a device are removed from "pending" once all are applied,
+    // always by ConcurrentMap.compute, so offer() and the writer cannot miss
+    // each other's updates
+    private static PendingEntries addOffered( String deviceId, PendingEntries entries ) {
+        if ( entries == null ) {
+            entries = new PendingEntries();
+        }
+        synchronized ( entries ) {
+            entries.offered++;
+        }
+        return entries;
+    }
+
+    private static PendingEntries addApplied( String deviceId, PendingEntries entries ) {
+        synchronized ( entries ) {
+            entries.applied++;
+            entries.notifyAll();
+            return entries.applied == entries.offered ? null : entries;
+        }
+    }
+
+    private Writer getWriter( String deviceId ) {
+        return writers[ (deviceId.hashCode() & Integer.MAX_VALUE) % writers.length ];
+    }
+
+    private ObjectName registerMXBean() {
+        try {
+            ObjectName name = new ObjectName( "sbl:type=IngestPipeline" );
+            if ( ManagementFactory.getPlatformMBeanServer().isRegistered( name ) ) {
+                return null;
+            }
+            ManagementFactory.getPlatformMBeanServer().registerMBean( this, name );
+            return name;
+        } catch ( JMException ex ) {
+            LOGGER.log( Level.WARNING, "Cannot register the ingest pipeline MXBean", ex );
+            return null;
+        }
+    }
+
+    private final class Writer implements Runnable {
+
+        final IngestQueue queue;
+        final Thread thread;
+        volatile boolean idle;
+
+        Writer( int index, int queueCapacity ) {
+            this.queue = new IngestQueue( queueCapacity );
+            this.thread = new Thread( this, "sbl-ingest-writer-" + index );
+            this.thread.setDaemon( true );
+        }
+
+        @Override
+        public void run() {
+            IngestBatch batch = new IngestBatch( maxBatchSize );
+            while ( true ) {
+                int count = queue.drainTo( batch, maxBatchSize );
+                if ( count == 0 ) {
+                    if ( !running ) break;
+                    // Writing idle and then reading the queue, against the producer
+                    // writing the queue and then reading idle, are all volatile
+                    // accesses, which are totally ordered. So either the producer
+                    // sees idle and unparks, or the entry is seen here, and the
+                    // writer can park until it is woken.
+                    idle = true;
+                    if ( queue.isEmpty() && running ) {
+                        LockSupport.park( this );
+                    }
+                    idle = false;
+                    continue;
+                }
+                for ( int i=0; i<count; i++ ) {
+                    try {
+                        dataSets.apply( batch.getDeviceId(i) ).add( batch.getTimestamp(i), batch.getAmountRemaining(i), 
+                            batch.getAmountConsumed(i), batch.getAmountAdded(i), batch.getNumRefills(i) );
+                    } catch ( Throwable ex ) {
+                        // Keeps the writer alive; its queue would never drain otherwise
+                        LOGGER.log( Level.SEVERE, "Cannot add an entry to data set " + batch.getDeviceId(i), ex );
+                    }
+                }
+                if ( log != null ) {
+                    try {
+                        log.flush();
+                    } catch ( Throwable ex ) {
+                        LOGGER.log( Level.SEVERE, "Cannot flush the data set log", ex );
+                    }
+                }
+                long now = System.nanoTime();
+                long totalLatency = 0;
+                for ( int i=0; i<count; i++ ) {
+                    totalLatency += now - batch.getEnqueueNanos(i);
+                }
+                // The first entry of the batch waited the longest
+                maxDrainLatencyNanos.accumulateAndGet( now - batch.getEnqueueNanos(0), Math::max );
+                maxBatch.accumulateAndGet( count, Math::max );
+                totalDrainLatencyNanos.add( totalLatency );
+                appliedCount.add( count );
+                batchCount.increment();
+                for ( int i=0; i<count; i++ ) {
+                    pending.computeIfPresent( batch.getDeviceId(i), IngestPipeline::addApplied );
+                }
+                batch.clear();
+            }
+        }
+
+    }
+
+    // Entries of one device that were offered, and how many of them were
+    // applied since (or rejected). Guarded by its own monitor, which readers
+    // wait on.
+    private static final class PendingEntries {
+
+        long offered;
+        long applied;
+
+    }
+
+}
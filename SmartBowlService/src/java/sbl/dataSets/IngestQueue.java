@@ -0,0 +1,125 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded lock-free queue of entries with many producers and a single
+// consumer. The slots are preallocated columns; each slot has a sequence
+// number that tells whether it is free for the producer that claimed the
+// position (sequence == position) or holds an entry published for the
+// consumer (sequence == position+1).
+final class IngestQueue {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final String[] deviceIds;
+    private final long[] timestamps;
+    private final double[] amountsRemaining;
+    private final double[] amountsConsumed;
+    private final double[] amountsAdded;
+    private final int[] numRefills;
+    private final long[] enqueueNanos;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;  // Only written by the consumer
+
+    // The capacity is rounded up to a power of two
+    IngestQueue( int capacity ) {
+        this.capacity = Integer.highestOneBit( Math.max( 2, capacity-1 ) ) << 1;
+        this.mask = this.capacity - 1;
+        this.sequences = new AtomicLongArray( this.capacity );
+        for ( int i=0; i<this.capacity; i++ ) {
+            sequences.set( i, i );
+        }
+        deviceIds = new String[this.capacity];
+        timestamps = new long[this.capacity];
+        amountsRemaining = new double[this.capacity];
+        amountsConsumed = new double[this.capacity];
+        amountsAdded = new double[this.capacity];
+        numRefills = new int[this.capacity];
+        enqueueNanos = new long[this.capacity];
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    int size() {
+        return (int) Math.max( 0, tail.get() - head );
+    }
+
+    // Returns false if the queue is full
+    boolean offer( String deviceId, long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int refills ) {
+        long position;
+        int index;
+        while ( true ) {
+            position = tail.get();
+            index = (int) position & mask;
+            long difference = sequences.get( index ) - position;
+            if ( difference == 0 ) {
+                if ( tail.compareAndSet( position, position+1 ) ) break;
+            } else if ( difference < 0 ) {
+                return false;  // The consumer has not freed the slot yet
+            }
+            // Otherwise another producer claimed the position first
+        }
+        deviceIds[index] = deviceId;
+        timestamps[index] = timestamp;
+        amountsRemaining[index] = amountRemaining;
+        amountsConsumed[index] = amountConsumed;
+        amountsAdded[index] = amountAdded;
+        numRefills[index] = refills;
+        enqueueNanos[index] = System.nanoTime();
+        sequences.set( index, position+1 );
+        return true;
+    }
+
+    // Moves up to maxCount published entries into the batch and frees their
+    // slots. Returns the number of entries moved.
+    int drainTo( IngestBatch batch, int maxCount ) {
+        long position = head;
+        int count = 0;
+        while ( count < maxCount ) {
+            int index = (int) position & mask;
+            if ( sequences.get( index ) != position+1 ) break;
+            batch.add( deviceIds[index], timestamps[index], amountsRemaining[index], amountsConsumed[index], amountsAdded[index], numRefills[index], enqueueNanos[index] );
+            deviceIds[index] = null;
+            sequences.lazySet( index, position+capacity );
+            position++;
+            count++;
+        }
+        head = position;
+        return count;
+    }
+
+    boolean isEmpty() {
+        return sequences.get( (int) head & mask ) != head+1;
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+// Outcome of adding a batch of entries to a data set
+public final class IngestResult {
+    
+    private final int accepted;
+    private final int duplicates;
+    private final int rejected;
+
+    IngestResult( int accepted, int duplicates, int rejected ) {
+        this.accepted = accepted;
+        this.duplicates = duplicates;
+        this.rejected = rejected;
+    }
+
+    // Entries that were stored
+    public int getAccepted() {
+        return accepted;
+    }
+
+    // Entries with the same timestamp and values as one already stored
+    public int getDuplicates() {
+        return duplicates;
+    }
+
+    // Entries older than anything the data set still keeps
+    public int getRejected() {
+        return rejected;
+    }
+    
+}
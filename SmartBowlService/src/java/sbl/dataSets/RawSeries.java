@@ -0,0 +1,354 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// The raw entries of a data set, sorted by timestamp. The newest ones are kept
+// uncompressed in an open block, which is sealed into a CompressedBlock once it
+// fills up. Sealed blocks take a few bytes per entry instead of the 44 of a
+// DataSeries and are never changed in place: the rare late entry that belongs
+// to one makes it get rewritten. A write decodes such a block once, for all
+// its late entries and dedup lookups, and compresses it again in flush(),
+// which has to be called before the write lock is released. Reads only decode
+// the blocks they need and copy the entries out, like every other series.
+//
+// Once there are more than maxCapacity entries the oldest block is dropped as
+// a whole, so between maxCapacity - BLOCK_SIZE and maxCapacity entries are
+// kept. Series too small for that to be a minor loss are never compressed:
+// the open block holds them all and simply overwrites its oldest entries.
+final class RawSeries {
+
+    static final int BLOCK_SIZE = 1024;
+    private static final int MIN_COMPRESSED_CAPACITY = 8*BLOCK_SIZE;
+
+    private final int maxCapacity;
+    private final List <CompressedBlock> blocks;  // Sealed blocks, oldest first
+    private final DataSeries head;  // The open block
+    private int sealedCount;
+    private long lastEvictedTimestamp = Long.MIN_VALUE;
+    private long lastEvictedSequence;
+    // The sealed block the current write decoded, until flush(); late entries
+    // tend to come in runs that hit the same block
+    private int decodedIndex = -1;
+    private DataSeries decodedEntries;
+    private boolean decodedChanged;
+
+    RawSeries( int maxCapacity ) {
+        this.maxCapacity = maxCapacity;
+        this.blocks = new ArrayList<>();
+        this.head = new DataSeries( maxCapacity >= MIN_COMPRESSED_CAPACITY ? BLOCK_SIZE : maxCapacity );
+    }
+
+    // Sealed blocks are immutable, so a copy shares them
+    private RawSeries( RawSeries src ) {
+        this.maxCapacity = src.maxCapacity;
+        this.blocks = new ArrayList<>( src.blocks );
+        this.head = src.head.copy( 0, src.head.size() );
+        this.sealedCount = src.sealedCount;
+        this.lastEvictedTimestamp = src.lastEvictedTimestamp;
+        this.lastEvictedSequence = src.lastEvictedSequence;
+    }
+
+    int size() {
+        return sealedCount + head.size();
+    }
+
+    int getMaxCapacity() {
+        return maxCapacity;
+    }
+
+    int getBlockCount() {
+        return blocks.size();
+    }
+
+    // Memory taken by the entries, not counting the fixed overhead
+    long getSizeInBytes() {
+        long ret = head.getSizeInBytes();
+        for ( CompressedBlock block : blocks ) {
+            ret += block.getSizeInBytes();
+        }
+        return ret;
+    }
+
+    // Timestamp of the newest entry that was dropped to make room for newer ones
+    long getLastEvictedTimestamp() {
+        return Math.max( lastEvictedTimestamp, head.getLastEvictedTimestamp() );
+    }
+
+    // Highest entry number of the entries dropped to make room for newer ones
+    long getLastEvictedSequence() {
+        return Math.max( lastEvictedSequence, head.getLastEvictedSequence() );
+    }
+
+    // Returns true if an entry with the given timestamp would not be kept,
+    // because newer entries have already been dropped or it would be the
+    // oldest one of a full series
+    boolean isEvicted( long timestamp ) {
+        if ( timestamp < getLastEvictedTimestamp() ) return true;
+        return size() >= maxCapacity && blocks.isEmpty() && head.size() > 0 && timestamp < head.getTimestamp(0);
+    }
+
+    RawSeries copy() {
+        return new RawSeries( this );
+    }
+
+    void clear() {
+        blocks.clear();
+        head.clear();
+        sealedCount = 0;
+        lastEvictedTimestamp = Long.MIN_VALUE;
+        lastEvictedSequence = 0;
+        decodedIndex = -1;
+        decodedEntries = null;
+    }
+
+    // Adds an entry; a late one goes after the entries with the same timestamp
+    // and, if it belongs to a sealed block, is only compressed by flush()
+    void add( long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int refills, long sequence ) {
+        int headSize = head.size();
+        if ( headSize > 0 ? timestamp >= head.getTimestamp( headSize-1 ) : blocks.isEmpty() || timestamp >= blocks.get( blocks.size()-1 ).getLastTimestamp() ) {
+            head.add( timestamp, amountRemaining, amountConsumed, amountAdded, refills, sequence );
+        } else {
+            int b = firstBlockEndingAfter( timestamp );
+            if ( b < blocks.size() ) {
+                DataSeries entries = decode( b );
+                entries.insert( entries.lowerBound( timestamp+1 ), timestamp, amountRemaining, amountConsumed, amountAdded, refills, sequence );
+                decodedChanged = true;
+                sealedCount++;
+            } else {
+                head.insert( head.lowerBound( timestamp+1 ), timestamp, amountRemaining, amountConsumed, amountAdded, refills, sequence );
+            }
+        }
+        if ( head.size() >= BLOCK_SIZE && maxCapacity >= MIN_COMPRESSED_CAPACITY ) {
+            blocks.add( CompressedBlock.of( head ) );
+            sealedCount += head.size();
+            head.clear();
+        }
+        while ( size() > maxCapacity && !blocks.isEmpty() ) {
+            flush();  // Dropping a block moves the others
+            CompressedBlock oldest = blocks.remove( 0 );
+            sealedCount -= oldest.size();
+            lastEvictedTimestamp = Math.max( lastEvictedTimestamp, oldest.getLastTimestamp() );
+            lastEvictedSequence = Math.max( lastEvictedSequence, oldest.getMaxSequence() );
+        }
+    }
+
+    // Compresses the sealed block changed by late entries again and drops the
+    // decoded entries
+    void flush() {
+        if ( decodedIndex >= 0 && decodedChanged ) {
+            blocks.set( decodedIndex, CompressedBlock.of( decodedEntries ) );
+        }
+        decodedIndex = -1;
+        decodedEntries = null;
+        decodedChanged = false;
+    }
+
+    // Returns true if an entry with the same timestamp and values is stored.
+    // Leaves the block it looked in decoded until flush(), like add().
+    boolean contains( long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int refills ) {
+        // Entries with the same timestamp may span several blocks. A late
+        // entry may have moved the start of the decoded one back.
+        for ( int b=firstBlockEndingAtOrAfter( timestamp ); b<blocks.size() && ( b == decodedIndex ? decodedEntries.getTimestamp(0) : blocks.get(b).getFirstTimestamp() ) <= timestamp; b++ ) {
+            if ( contains( decode( b ), timestamp, amountRemaining, amountConsumed, amountAdded, refills ) ) {
+                return true;
+            }
+        }
+        return contains( head, timestamp, amountRemaining, amountConsumed, amountAdded, refills );
+    }
+
+    // Timestamp of the oldest entry; the series must not be empty
+    long getFirstTimestamp() {
+        return blocks.isEmpty() ? head.getTimestamp(0) : blocks.get(0).getFirstTimestamp();
+    }
+
+    // Returns an independent copy of the entries with timestamps in the [from, to) range
+    DataSeries copy( long from, long to ) {
+        DataSeries ret = new DataSeries( size() );
+        for ( int b=firstBlockEndingAtOrAfter( from ); b<blocks.size() && blocks.get(b).getFirstTimestamp() < to; b++ ) {
+            CompressedBlock.Reader reader = blocks.get(b).reader();
+            while ( reader.next() && reader.getTimestamp() < to ) {
+                if ( reader.getTimestamp() >= from ) {
+                    reader.copyTo( ret );
+                }
+            }
+        }
+        int toIndex = head.lowerBound( to );
+        for ( int i=head.lowerBound( from ); i<toIndex; i++ ) {
+            copyEntry( head, i, ret );
+        }
+        return ret;
+    }
+
+    // Returns an independent copy of the last "count" entries, or all of them
+    // for "0" or a negative count
+    DataSeries copyLast( int count ) {
+        int size = size();
+        if ( count <= 0 || count > size ) {
+            count = size;
+        }
+        DataSeries ret = new DataSeries( count );
+        int skip = size - count;
+        int b = 0;
+        while ( b < blocks.size() && skip >= blocks.get(b).size() ) {
+            skip -= blocks.get(b).size();
+            b++;
+        }
+        for ( ; b<blocks.size(); b++ ) {
+            CompressedBlock.Reader reader = blocks.get(b).reader();
+            while ( reader.next() ) {
+                if ( skip > 0 ) {
+                    skip--;
+                } else {
+                    reader.copyTo( ret );
+                }
+            }
+        }
+        for ( int i=skip; i<head.size(); i++ ) {
+            copyEntry( head, i, ret );
+        }
+        return ret;
+    }
+
+    // Returns an independent copy of the entries with an entry number higher
+    // than the given one, in timestamp order
+    DataSeries copySince( long sequence ) {
+        DataSeries ret = new DataSeries( size() );
+        for ( CompressedBlock block : blocks ) {
+            if ( block.getMaxSequence() <= sequence ) continue;
+            CompressedBlock.Reader reader = block.reader();
+            while ( reader.next() ) {
+                if ( reader.getSequence() > sequence ) {
+                    reader.copyTo( ret );
+                }
+            }
+        }
+        for ( int i=0; i<head.size(); i++ ) {
+            if ( head.getSequence(i) > sequence ) {
+                copyEntry( head, i, ret );
+            }
+        }
+        return ret;
+    }
+
+    // Writes the entries uncompressed: the entry count, the last evicted
+    // timestamp and entry number, then the values and number of every entry
+    void writeTo( DataOutput out ) throws IOException {
+        out.writeInt( size() );
+        out.writeLong( getLastEvictedTimestamp() );
+        out.writeLong( getLastEvictedSequence() );
+        for ( CompressedBlock block : blocks ) {
+            CompressedBlock.Reader reader = block.reader();
+            while ( reader.next() ) {
+                writeEntry( out, reader.getTimestamp(), reader.getAmountRemaining(), reader.getAmountConsumed(), reader.getAmountAdded(), reader.getNumRefills(), reader.getSequence() );
+            }
+        }
+        for ( int i=0; i<head.size(); i++ ) {
+            writeEntry( out, head.getTimestamp(i), head.getAmountRemaining(i), head.getAmountConsumed(i), head.getAmountAdded(i), head.getNumRefills(i), head.getSequence(i) );
+        }
+    }
+
+    // Replaces the content with the entries written by writeTo. Older snapshots
+    // stored the entries like DataSeries.writeTo does, without the entry
+    // numbers; those entries are numbered from 1.
+    void readFrom( ByteBuffer in, boolean withSequences ) {
+        clear();
+        int count = in.getInt();
+        long evicted = in.getLong();
+        long evictedSequence = withSequences ? in.getLong() : 0;
+        for ( int i=0; i<count; i++ ) {
+            add( in.getLong(), in.getDouble(), in.getDouble(), in.getDouble(), in.getInt(), withSequences ? in.getLong() : i+1 );
+        }
+        flush();
+        lastEvictedTimestamp = Math.max( lastEvictedTimestamp, evicted );
+        lastEvictedSequence = Math.max( lastEvictedSequence, evictedSequence );
+    }
+
+    // Index of the first sealed block with entries newer than the given
+    // timestamp, or the number of blocks if there is none
+    private int firstBlockEndingAfter( long timestamp ) {
+        return timestamp == Long.MAX_VALUE ? blocks.size() : firstBlockEndingAtOrAfter( timestamp+1 );
+    }
+
+    private int firstBlockEndingAtOrAfter( long timestamp ) {
+        int low = 0;
+        int high = blocks.size();
+        while ( low < high ) {
+            int mid = (low + high) >>> 1;
+            if ( blocks.get(mid).getLastTimestamp() < timestamp ) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private DataSeries decode( int b ) {
+        if ( b != decodedIndex ) {
+            flush();
+            CompressedBlock block = blocks.get(b);
+            DataSeries entries = new DataSeries( Integer.MAX_VALUE, block.size()+1 );
+            CompressedBlock.Reader reader = block.reader();
+            while ( reader.next() ) {
+                reader.copyTo( entries );
+            }
+            decodedIndex = b;
+            decodedEntries = entries;
+        }
+        return decodedEntries;
+    }
+
+    private static boolean contains( DataSeries entries, long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int refills ) {
+        for ( int i=entries.lowerBound( timestamp ); i<entries.size() && entries.getTimestamp(i) == timestamp; i++ ) {
+            if ( entries.getAmountRemaining(i) == amountRemaining && entries.getAmountConsumed(i) == amountConsumed 
+                    && entries.getAmountAdded(i) == amountAdded && entries.getNumRefills(i) == refills ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void copyEntry( DataSeries src, int i, DataSeries dest ) {
+        dest.add( src.getTimestamp(i), src.getAmountRemaining(i), src.getAmountConsumed(i), src.getAmountAdded(i), src.getNumRefills(i), src.getSequence(i) );
+    }
+
+    private static void writeEntry( DataOutput out, long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int refills, long sequence ) throws IOException {
+        out.writeLong( timestamp );
+        out.writeDouble( amountRemaining );
+        out.writeDouble( amountConsumed );
+        out.writeDouble( amountAdded );
+        out.writeInt( refills );
+        out.writeLong( sequence );
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Aggregates entries into fixed-width time buckets as they arrive. Each bucket
+// keeps the timestamp and remaining amount of its latest entry together with
+// the consumed/added amounts and refills summed over all of its entries.
+final class RollupSeries {
+
+    private final long bucketSeconds;
+    private final DataSeries buckets;
+
+    RollupSeries( long bucketSeconds, int maxBucketCount ) {
+        this.bucketSeconds = bucketSeconds;
+        this.buckets = new DataSeries( maxBucketCount );
+    }
+
+    private RollupSeries( long bucketSeconds, DataSeries buckets ) {
+        this.bucketSeconds = bucketSeconds;
+        this.buckets = buckets;
+    }
+
+    long getBucketSeconds() {
+        return bucketSeconds;
+    }
+
+    int size() {
+        return buckets.size();
+    }
+
+    long getSizeInBytes() {
+        return buckets.getSizeInBytes();
+    }
+
+    // Tells whether the bucket holding the given timestamp has not been evicted yet
+    boolean covers( long timestamp ) {
+        long lastEvicted = buckets.getLastEvictedTimestamp();
+        return lastEvicted == Long.MIN_VALUE || lastEvicted < startOfBucket( timestamp );
+    }
+
+    void clear() {
+        buckets.clear();
+    }
+
+    void add( long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int numRefills ) {
+        long bucket = Math.floorDiv( timestamp, bucketSeconds );
+        int size = buckets.size();
+        int i = size;
+        if ( size > 0 && bucketOf( size-1 ) >= bucket ) {
+            // Late entry - usually lands in the last bucket, otherwise look it up
+            i = bucketOf( size-1 ) == bucket ? size-1 : buckets.lowerBound( bucket*bucketSeconds );
+        }
+        if ( i < size && bucketOf(i) == bucket ) {
+            long lastTimestamp = buckets.getTimestamp(i);
+            boolean isLatest = timestamp >= lastTimestamp;
+            buckets.set( i,
+                isLatest ? timestamp : lastTimestamp,
+                isLatest ? amountRemaining : buckets.getAmountRemaining(i),
+                buckets.getAmountConsumed(i) + amountConsumed,
+                buckets.getAmountAdded(i) + amountAdded,
+                buckets.getNumRefills(i) + numRefills
+            );
+        } else {
+            buckets.insert( i, timestamp, amountRemaining, amountConsumed, amountAdded, numRefills );
+        }
+    }
+
+    // Returns a copy of the bucket holding the given timestamp, null if there is none
+    DataSetEntry getBucket( long timestamp ) {
+        long bucket = Math.floorDiv( timestamp, bucketSeconds );
+        int i = buckets.lowerBound( bucket*bucketSeconds );
+        return i < buckets.size() && bucketOf(i) == bucket ? buckets.getEntry(i) : null;
+    }
+
+    // Returns copies of the buckets covering the [from, to) range
+    DataSeries getBuckets( long from, long to ) {
+        int fromIndex = buckets.lowerBound( startOfBucket( from ) );
+        int toIndex = Math.max( fromIndex, buckets.lowerBound( to ) );
+        return buckets.copy( fromIndex, toIndex );
+    }
+
+    // Adds the buckets covering the [from, to) range to the totals
+    void addTo( FleetTotals totals, long from, long to ) {
+        int fromIndex = buckets.lowerBound( startOfBucket( from ) );
+        int toIndex = buckets.lowerBound( to );
+        for ( int i=fromIndex; i<toIndex; i++ ) {
+            totals.add( buckets.getTimestamp(i), buckets.getAmountConsumed(i), buckets.getAmountAdded(i), buckets.getNumRefills(i) );
+        }
+    }
+
+    RollupSeries copy() {
+        return new RollupSeries( bucketSeconds, buckets.copy( 0, buckets.size() ) );
+    }
+
+    void writeTo( DataOutput out ) throws IOException {
+        buckets.writeTo( out );
+    }
+
+    void readFrom( ByteBuffer in ) {
+        buckets.readFrom( in );
+    }
+
+    private long bucketOf( int i ) {
+        return Math.floorDiv( buckets.getTimestamp(i), bucketSeconds );
+    }
+
+    // Open ranges start at Long.MIN_VALUE, whose bucket would overflow
+    private long startOfBucket( long timestamp ) {
+        long bucket = Math.floorDiv( timestamp, bucketSeconds );
+        return bucket < Long.MIN_VALUE / bucketSeconds ? Long.MIN_VALUE : bucket*bucketSeconds;
+    }
+
+}
@@ -0,0 +1,352 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+// Append-only log of data set changes kept in memory-mapped segment files of
+// fixed-size records. Writers only claim a slot and copy their record into the
+// mapped segment; a background thread forces the dirty segments to disk every
+// few milliseconds, so a single fsync covers all the records written meanwhile.
+//
+// Record layout (little-endian, RECORD_SIZE bytes):
+//   0   type (RECORD_ENTRY or RECORD_CLEAR), 0 for a slot that was never written
+//   1   length of the device ID in bytes
+//   8   timestamp
+//   16  amount remaining
+//   24  amount consumed
+//   32  amount added
+//   40  number of refills
+//   44  device ID (UTF-8, up to MAX_DEVICE_ID_LENGTH bytes)
+//   124 CRC32 of bytes 0..123
+final class SegmentLog {
+
+    interface Replayer {
+        void entry( long sequence, String deviceId, long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int numRefills );
+        void clear( long sequence, String deviceId );
+    }
+
+    static final int MAX_DEVICE_ID_LENGTH = 80;
+
+    private static final Logger LOGGER = Logger.getLogger( SegmentLog.class.getName() );
+    private static final byte RECORD_ENTRY = 1;
+    private static final byte RECORD_CLEAR = 2;
+    private static final int RECORD_SIZE = 128;
+    private static final int CRC_OFFSET = 124;
+    private static final int SEGMENT_SHIFT = 16;  // 65536 records (8 MB) per segment
+    private static final int RECORDS_PER_SEGMENT = 1 << SEGMENT_SHIFT;
+    private static final String SEGMENT_PREFIX = "data-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final long CLEANUP_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final ThreadLocal<ByteBuffer> RECORD_BUFFER = ThreadLocal.withInitial(
+        () -> ByteBuffer.allocate( RECORD_SIZE ).order( ByteOrder.LITTLE_ENDIAN )
+    );
+    private static final ThreadLocal<CRC32> CRC = ThreadLocal.withInitial( CRC32::new );
+
+    private final File directory;
+    private final long retentionMillis;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final Map <Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ScheduledExecutorService flusher;
+    private volatile Segment currentSegment;
+    private volatile long flushedSequence;
+    private long lastCleanupMillis;
+
+    SegmentLog( File directory, long flushIntervalMillis, long retentionMillis ) {
+        this.directory = directory;
+        this.retentionMillis = retentionMillis;
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new UncheckedIOException( new IOException( "Cannot create log directory " + directory ) );
+        }
+        this.flusher = Executors.newSingleThreadScheduledExecutor( r -> {
+            Thread t = new Thread( r, "sbl-log-flusher" );
+            t.setDaemon( true );
+            return t;
+        } );
+        flusher.scheduleWithFixedDelay( this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS );
+    }
+
+    // Feeds the valid records starting at the given sequence number to the
+    // replayer in log order and positions the log after the last record found.
+    // Must be called before the first append.
+    long replay( long fromSequence, Replayer replayer ) {
+        long count = 0;
+        long corrupted = 0;
+        long next = 0;
+        for ( long segmentIndex : listSegments() ) {
+            long firstSequence = segmentIndex << SEGMENT_SHIFT;
+            if ( firstSequence + RECORDS_PER_SEGMENT <= fromSequence ) continue;
+            ByteBuffer buffer = mapSegment( segmentIndex ).order( ByteOrder.LITTLE_ENDIAN );
+            byte[] record = new byte[RECORD_SIZE];
+            CRC32 crc = new CRC32();
+            for ( int i=(int) Math.max( 0, fromSequence-firstSequence ); i<RECORDS_PER_SEGMENT; i++ ) {
+                long sequence = firstSequence + i;
+                int offset = i*RECORD_SIZE;
+                byte type = buffer.get( offset );
+                if ( type == 0 ) continue;
+                buffer.position( offset );
+                buffer.get( record );
+                crc.reset();
+                crc.update( record, 0, CRC_OFFSET );
+                if ( (int) crc.getValue() != buffer.getInt( offset+CRC_OFFSET ) ) {
+                    corrupted++;
+                    continue;
+                }
+                String deviceId = new String( record, 44, record[1], StandardCharsets.UTF_8 );
+                if ( type == RECORD_CLEAR ) {
+                    replayer.clear( sequence, deviceId );
+                } else {
+                    replayer.entry(
+                        sequence,
+                        deviceId,
+                        buffer.getLong( offset+8 ),
+                        buffer.getDouble( offset+16 ),
+                        buffer.getDouble( offset+24 ),
+                        buffer.getDouble( offset+32 ),
+                        buffer.getInt( offset+40 )
+                    );
+                }
+                count++;
+                next = sequence + 1;
+            }
+        }
+        if ( next > 0 ) {
+            currentSegment = openSegment( (next-1) >>> SEGMENT_SHIFT );
+        }
+        next = Math.max( next, fromSequence );
+        nextSequence.set( next );
+        flushedSequence = next;
+        if ( corrupted > 0 ) {
+            LOGGER.log( Level.WARNING, "Skipped {0} corrupted log records", corrupted );
+        }
+        return count;
+    }
+
+    // Appends a record and returns its sequence number
+    long appendEntry( byte[] deviceId, long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int numRefills ) {
+        ByteBuffer record = RECORD_BUFFER.get();
+        record.putLong( 8, timestamp );
+        record.putDouble( 16, amountRemaining );
+        record.putDouble( 24, amountConsumed );
+        record.putDouble( 32, amountAdded );
+        record.putInt( 40, numRefills );
+        return append( RECORD_ENTRY, deviceId, record );
+    }
+
+    long appendClear( byte[] deviceId ) {
+        ByteBuffer record = RECORD_BUFFER.get();
+        record.putLong( 8, 0L ).putLong( 16, 0L ).putLong( 24, 0L ).putLong( 32, 0L ).putInt( 40, 0 );
+        return append( RECORD_CLEAR, deviceId, record );
+    }
+
+    long getNextSequence() {
+        return nextSequence.get();
+    }
+
+    // Forces everything appended so far to disk
+    // Called by the flusher and the ingest writers, see IngestPipeline
+    synchronized void flush() {
+        long sequence = nextSequence.get();
+        for ( Segment segment : segments.values() ) {
+            segment.buffer.force();
+        }
+        flushedSequence = sequence;
+        // Segments that are complete and flushed are no longer needed for writing
+        long currentIndex = sequence >>> SEGMENT_SHIFT;
+        segments.keySet().removeIf( index -> index < currentIndex - 1 );
+    }
+
+    long getFlushedSequence() {
+        return flushedSequence;
+    }
+
+    void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination( 10, TimeUnit.SECONDS );
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        segments.clear();
+    }
+
+    private long append( byte type, byte[] deviceId, ByteBuffer record ) {
+        if ( deviceId.length > MAX_DEVICE_ID_LENGTH ) {
+            throw new IllegalArgumentException( "Device ID is too long to be stored: " + deviceId.length + " bytes" );
+        }
+        byte[] bytes = record.array();
+        bytes[0] = type;
+        bytes[1] = (byte) deviceId.length;
+        System.arraycopy( deviceId, 0, bytes, 44, deviceId.length );
+        Arrays.fill( bytes, 44+deviceId.length, CRC_OFFSET, (byte) 0 );
+        CRC32 crc = CRC.get();
+        crc.reset();
+        crc.update( bytes, 0, CRC_OFFSET );
+        record.putInt( CRC_OFFSET, (int) crc.getValue() );
+
+        long sequence = nextSequence.getAndIncrement();
+        Segment segment = getSegment( sequence >>> SEGMENT_SHIFT );
+        int offset = (int) (sequence & (RECORDS_PER_SEGMENT-1)) * RECORD_SIZE;
+        // The type byte goes last so that a record is only visible once complete
+        for ( int i=8; i<RECORD_SIZE; i+=8 ) {
+            segment.buffer.putLong( offset+i, record.getLong(i) );
+        }
+        segment.buffer.putLong( offset, record.getLong(0) );
+        return sequence;
+    }
+
+    private Segment getSegment( long index ) {
+        Segment segment = currentSegment;
+        if ( segment != null && segment.index == index ) {
+            return segment;
+        }
+        segment = segments.get( index );
+        if ( segment != null ) {
+            return segment;
+        }
+        synchronized ( segments ) {
+            segment = segments.get( index );
+            if ( segment == null ) {
+                segment = openSegment( index );
+            }
+            if ( currentSegment == null || currentSegment.index < index ) {
+                currentSegment = segment;
+            }
+            return segment;
+        }
+    }
+
+    private Segment openSegment( long index ) {
+        MappedByteBuffer buffer = mapSegment( index );
+        buffer.order( ByteOrder.LITTLE_ENDIAN );
+        Segment segment = new Segment( index, buffer );
+        segments.put( index, segment );
+        return segment;
+    }
+
+    private MappedByteBuffer mapSegment( long index ) {
+        File file = segmentFile( index );
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) ) {
+            raf.setLength( (long) RECORDS_PER_SEGMENT*RECORD_SIZE );
+            return raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, (long) RECORDS_PER_SEGMENT*RECORD_SIZE );
+        } catch ( IOException ex ) {
+            throw new UncheckedIOException( "Cannot open log segment " + file, ex );
+        }
+    }
+
+    private long[] listSegments() {
+        String[] names = directory.list( (dir, name) -> name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX ) );
+        if ( names == null ) return new long[0];
+        return Arrays.stream( names )
+            .mapToLong( name -> Long.parseLong( name.substring( SEGMENT_PREFIX.length(), name.length()-SEGMENT_SUFFIX.length() ) ) )
+            .sorted()
+            .toArray();
+    }
+
+    private File segmentFile( long index ) {
+        return new File( directory, String.format( "%s%016d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX ) );
+    }
+
+    // Deletes the segments that only hold records older than the given sequence
+    // number, i.e. the ones that are fully covered by a snapshot
+    void deleteSegmentsBefore( long sequence ) {
+        for ( long index : listSegments() ) {
+            if ( (index+1) << SEGMENT_SHIFT > sequence ) break;
+            segments.remove( index );
+            File file = segmentFile( index );
+            if ( !file.delete() ) {
+                LOGGER.log( Level.WARNING, "Cannot delete log segment {0}", file );
+            }
+        }
+    }
+
+    // Deletes the closed segments whose records all fall before the retention
+    // period. A segment is complete by the time the following one is created,
+    // so the modification time of the following segment bounds its last write.
+    private void deleteExpiredSegments() {
+        long currentIndex = nextSequence.get() >>> SEGMENT_SHIFT;
+        long expiry = System.currentTimeMillis() - retentionMillis;
+        for ( long index : listSegments() ) {
+            File file = segmentFile( index );
+            File following = segmentFile( index+1 );
+            if ( index < currentIndex - 1 && following.exists() && following.lastModified() < expiry ) {
+                segments.remove( index );
+                if ( !file.delete() ) {
+                    LOGGER.log( Level.WARNING, "Cannot delete expired log segment {0}", file );
+                }
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            if ( flushedSequence != nextSequence.get() ) {
+                flush();
+            }
+            long now = System.currentTimeMillis();
+            if ( now - lastCleanupMillis > CLEANUP_INTERVAL_MILLIS ) {
+                lastCleanupMillis = now;
+                deleteExpiredSegments();
+            }
+        } catch ( RuntimeException ex ) {
+            LOGGER.log( Level.SEVERE, "Cannot flush the data set log", ex );
+        }
+    }
+
+    private static final class Segment {
+
+        final long index;
+        final MappedByteBuffer buffer;
+
+        Segment( long index, MappedByteBuffer buffer ) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+
+    }
+
+}
@@ -0,0 +1,270 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+// Compact binary images of all the data sets. A snapshot records the log
+// sequence number at which it was started and every data set records the last
+// log record it includes, so the log can be replayed on top of it exactly.
+// The previous snapshot is kept as a fallback in case the latest one is damaged.
+// A new snapshot is read back and checked before it replaces the latest one,
+// and a snapshot that cannot be loaded is moved aside, so every snapshot file
+// in place is known to be good.
+//
+// File layout (big-endian):
+//   header: magic, version, start sequence, creation time, data set count, CRC32 of the header
+//   then for each data set: payload length, CRC32 of the payload, payload
+//   (device ID length and UTF-8 bytes, followed by DataSet.writeTo output)
+final class SnapshotStore {
+
+    static final long NO_SNAPSHOT = -1;
+
+    static final int MAGIC = 0x53424c53;  // "SBLS"
+    static final int VERSION = 2;  // Version 1 is still read, see DataSet.readFrom()
+    static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+
+    private final File latestFile;
+    private final File previousFile;
+    private final File tempFile;
+
+    SnapshotStore( File directory ) {
+        this.latestFile = new File( directory, "snapshot.dat" );
+        this.previousFile = new File( directory, "snapshot.prev" );
+        this.tempFile = new File( directory, "snapshot.tmp" );
+    }
+
+    File getLatestFile() {
+        return latestFile;
+    }
+
+    File getPreviousFile() {
+        return previousFile;
+    }
+
+    // Writes the data sets, copying each one under its own lock, and rotates
+    // the previous snapshot out
+    void write( long startSequence, Collection<DataSet> dataSets ) throws IOException {
+        List <DataSet> snapshot = new ArrayList<>( dataSets );
+        try ( FileOutputStream fileOut = new FileOutputStream( tempFile ) ) {
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( fileOut, 1 << 16 ) );
+            ByteArrayOutputStream header = new ByteArrayOutputStream( HEADER_SIZE );
+            DataOutputStream headerOut = new DataOutputStream( header );
+            headerOut.writeInt( MAGIC );
+            headerOut.writeInt( VERSION );
+            headerOut.writeLong( startSequence );
+            headerOut.writeLong( System.currentTimeMillis() );
+            headerOut.writeInt( snapshot.size() );
+            out.write( header.toByteArray() );
+            out.writeInt( crc( header.toByteArray(), 0, header.size() ) );
+
+            ByteArrayOutputStream payload = new ByteArrayOutputStream( 1 << 16 );
+            DataOutputStream payloadOut = new DataOutputStream( payload );
+            for ( DataSet dataSet : snapshot ) {
+                payload.reset();
+                DataSet copy = dataSet.copy();
+                byte[] deviceId = copy.getDeviceId().getBytes( StandardCharsets.UTF_8 );
+                payloadOut.writeShort( deviceId.length );
+                payloadOut.write( deviceId );
+                copy.writeTo( payloadOut );
+                byte[] bytes = payload.toByteArray();
+                out.writeInt( bytes.length );
+                out.writeInt( crc( bytes, 0, bytes.length ) );
+                out.write( bytes );
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        verify( tempFile );
+        if ( latestFile.exists() ) {
+            Files.move( latestFile.toPath(), previousFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        }
+        Files.move( tempFile.toPath(), latestFile.toPath(), StandardCopyOption.ATOMIC_MOVE );
+    }
+
+    // Returns the start sequence stored in the header of the snapshot file
+    long readStartSequence( File file ) throws IOException {
+        if ( !file.isFile() ) return NO_SNAPSHOT;
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "r" ) ) {
+            byte[] header = new byte[HEADER_SIZE + 4];
+            raf.readFully( header );
+            return readHeader( ByteBuffer.wrap( header ) ).startSequence;
+        }
+    }
+
+    // Loads a snapshot file, decoding the data sets in parallel. The factory
+    // creates (or returns) the data set that should receive the given device's
+    // content. Returns the start sequence of the snapshot.
+    long load( File file, Function<String, DataSet> factory ) throws IOException {
+        if ( !file.isFile() ) return NO_SNAPSHOT;
+        Header header;
+        List <ByteBuffer> blocks;
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+            header = readHeader( readFully( channel, 0, HEADER_SIZE + 4 ) );
+
+            // Locate the data sets first, then decode them in parallel. Every
+            // data set is mapped on its own, as the whole file may well be
+            // larger than the 2 GB a single mapping can cover.
+            blocks = new ArrayList<>( header.dataSetCount );
+            long size = channel.size();
+            long position = HEADER_SIZE + 4;
+            for ( int i=0; i<header.dataSetCount; i++ ) {
+                ByteBuffer prefix = readFully( channel, position, 8 );
+                int length = prefix.getInt();
+                int expectedCrc = prefix.getInt();
+                if ( length < 0 || position + 8 + length > size ) {
+                    throw new IOException( "Data set #" + i + " of " + file + " is truncated" );
+                }
+                ByteBuffer block = channel.map( FileChannel.MapMode.READ_ONLY, position + 8, length );
+                if ( crc( block.duplicate() ) != expectedCrc ) {
+                    throw new IOException( "Checksum mismatch in data set #" + i + " of " + file );
+                }
+                blocks.add( block );
+                position += 8 + length;
+            }
+        }
+        blocks.parallelStream().forEach( block -> {
+            String deviceId = readDeviceId( block );
+            factory.apply( deviceId ).readFrom( block, header.version );
+        } );
+        return header.startSequence;
+    }
+
+    // Reads the whole file through a small buffer and checks all the checksums
+    void verify( File file ) throws IOException {
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 1 << 16 ) ) ) {
+            byte[] header = new byte[HEADER_SIZE + 4];
+            in.readFully( header );
+            int dataSetCount = readHeader( ByteBuffer.wrap( header ) ).dataSetCount;
+            byte[] chunk = new byte[1 << 16];
+            for ( int i=0; i<dataSetCount; i++ ) {
+                int length = in.readInt();
+                int expectedCrc = in.readInt();
+                CRC32 crc = new CRC32();
+                for ( int remaining=length; remaining>0; ) {
+                    int n = Math.min( remaining, chunk.length );
+                    in.readFully( chunk, 0, n );
+                    crc.update( chunk, 0, n );
+                    remaining -= n;
+                }
+                if ( (int) crc.getValue() != expectedCrc ) {
+                    throw new IOException( "Checksum mismatch in data set #" + i + " of " + file );
+                }
+            }
+        } catch ( EOFException ex ) {
+            throw new IOException( file + " is truncated", ex );
+        }
+    }
+
+    // Moves a snapshot that cannot be loaded out of the way, so it is neither
+    // rotated in as the fallback nor trusted when trimming the log, but can
+    // still be inspected
+    void quarantine( File file ) throws IOException {
+        if ( file.exists() ) {
+            Files.move( file.toPath(), new File( file.getParentFile(), file.getName() + ".bad" ).toPath(), StandardCopyOption.REPLACE_EXISTING );
+        }
+    }
+
+    private static ByteBuffer readFully( FileChannel channel, long position, int length ) throws IOException {
+        ByteBuffer ret = ByteBuffer.allocate( length );
+        while ( ret.hasRemaining() ) {
+            if ( channel.read( ret, position + ret.position() ) < 0 ) {
+                throw new EOFException( "Unexpected end of snapshot at " + (position + ret.position()) );
+            }
+        }
+        ret.flip();
+        return ret;
+    }
+
+    private Header readHeader( ByteBuffer buffer ) throws IOException {
+        byte[] bytes = new byte[HEADER_SIZE];
+        buffer.duplicate().get( bytes );
+        if ( buffer.getInt( HEADER_SIZE ) != crc( bytes, 0, HEADER_SIZE ) ) {
+            throw new IOException( "Snapshot header checksum mismatch" );
+        }
+        ByteBuffer in = ByteBuffer.wrap( bytes );
+        if ( in.getInt() != MAGIC ) {
+            throw new IOException( "Not a snapshot file" );
+        }
+        int version = in.getInt();
+        if ( version < 1 || version > VERSION ) {
+            throw new IOException( "Unsupported snapshot version: " + version );
+        }
+        Header header = new Header();
+        header.version = version;
+        header.startSequence = in.getLong();
+        in.getLong();  // Creation time
+        header.dataSetCount = in.getInt();
+        return header;
+    }
+
+    private static String readDeviceId( ByteBuffer in ) {
+        byte[] bytes = new byte[ in.getShort() & 0xffff ];
+        in.get( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    private static int crc( byte[] bytes, int offset, int length ) {
+        CRC32 crc = new CRC32();
+        crc.update( bytes, offset, length );
+        return (int) crc.getValue();
+    }
+
+    private static int crc( ByteBuffer buffer ) {
+        CRC32 crc = new CRC32();
+        crc.update( buffer );
+        return (int) crc.getValue();
+    }
+
+    private static final class Header {
+        int version;
+        long startSequence;
+        int dataSetCount;
+    }
+
+}
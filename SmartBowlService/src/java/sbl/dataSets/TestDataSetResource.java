@@ -26,11 +26,8 @@ SOFTWARE.
 
 package sbl.dataSets;
 
-import javax.ws.rs.DefaultValue;
-import javax.ws.rs.GET;
-import javax.ws.rs.Produces;
-import javax.ws.rs.QueryParam;
-import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 
 // A special data set that produces dummy test data
 public class TestDataSetResource extends DataSetResource {
@@ -41,15 +38,11 @@ public class TestDataSetResource extends DataSetResource {
         super(dataSetsDAO, TEST_DATA_SET_ID);
     }
     
-    @GET
-    @Produces(MediaType.TEXT_PLAIN)
-    public String getDataSet( 
-            @DefaultValue("0") @QueryParam("numEntries") int numEntries,
-            @DefaultValue("0") @QueryParam("hoursBack") int hoursBack
-        ) {
+    @Override
+    protected Response getDataSet( int numEntries, int hoursBack, String from, String to, String resolution, String since, Request request ) {
         getDataSetsDAO().clearDataSet(TEST_DATA_SET_ID);
         new TestDataGenerator( getDataSetsDAO() ).fillDataSet( getId(), hoursBack );
-        return super.getDataSet(numEntries, hoursBack);
+        return super.getDataSet(numEntries, hoursBack, from, to, resolution, since, request);
     }
     
 }
@@ -26,14 +26,34 @@ SOFTWARE.
 
 package sbl.devices;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 public class DeviceDAO {
     
-    private static final DeviceDAO INSTANCE = new DeviceDAO();
+    // Devices are only persisted when a data directory is configured
+    private static final String DATA_DIR = System.getProperty( "sbl.dataDir" );
+    private static final int STORE_VERSION = 1;
+    private static final Logger LOGGER = Logger.getLogger( DeviceDAO.class.getName() );
+    private static final DeviceDAO INSTANCE = new DeviceDAO( DATA_DIR != null ? new File( DATA_DIR ) : null );
 
     public static DeviceDAO getInstance() {
         return INSTANCE;
@@ -41,11 +61,30 @@ public class DeviceDAO {
     
     
     private final Map <String,Device> deviceLookup = new HashMap<>();
+    private final Map <String,Revision> revisionLookup = new HashMap<>();
+    private long lastVersion;
     private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
     private final Lock readLock = readWriteLock.readLock();
     private final Lock writeLock = readWriteLock.writeLock();
     
-    private DeviceDAO() {}
+    private final File storeFile;
+    private final File previousFile;
+    
+    // The directory is null if the devices are not persisted
+    DeviceDAO( File directory ) {
+        if ( directory != null ) {
+            storeFile = new File( directory, "devices.dat" );
+            previousFile = new File( directory, "devices.prev" );
+            // The previous store is only missing the last change, and is all
+            // that is left if the service stopped while replacing the store
+            if ( !load( storeFile ) ) {
+                load( previousFile );
+            }
+        } else {
+            storeFile = null;
+            previousFile = null;
+        }
+    }
     
     public void addDevice( Device d ) {
         writeLock.lock();
@@ -55,6 +94,8 @@ public class DeviceDAO {
             }
             Device copy = new Device(d);
             deviceLookup.put( copy.getId(), copy );
+            revisionLookup.put( copy.getId(), new Revision( ++lastVersion, System.currentTimeMillis() ) );
+            save();
         } finally {
             writeLock.unlock();
         }
@@ -68,6 +109,8 @@ public class DeviceDAO {
             }
             Device copy = new Device(d);
             deviceLookup.put( copy.getId(), copy );
+            revisionLookup.put( copy.getId(), new Revision( ++lastVersion, System.currentTimeMillis() ) );
+            save();
         } finally {
             writeLock.unlock();
         }
@@ -82,6 +125,29 @@ public class DeviceDAO {
         }
     }
     
+    // Version of the device's settings, "0" if there is no such device. It
+    // changes with every update, but only within one run of the service.
+    public long getVersion( String deviceId ) {
+        readLock.lock();
+        try {
+            Revision r = revisionLookup.get( deviceId );
+            return r != null ? r.version : 0;
+        } finally {
+            readLock.unlock();
+        }
+    }
+    
+    // Time of the last update of the device's settings, "0" if there is no such device
+    public long getLastModified( String deviceId ) {
+        readLock.lock();
+        try {
+            Revision r = revisionLookup.get( deviceId );
+            return r != null ? r.lastModifiedMillis : 0;
+        } finally {
+            readLock.unlock();
+        }
+    }
+    
     public Device getDevice( String deviceId ) {
         readLock.lock();
         try {
@@ -96,4 +162,101 @@ public class DeviceDAO {
         }
     }
     
+    // Returns false if there is no such file or it cannot be loaded, in which
+    // case it is moved aside, so the service still starts and the file can be
+    // inspected
+    private boolean load( File file ) {
+        if ( !file.isFile() ) return false;
+        try {
+            read( file );
+            return true;
+        } catch ( IOException | RuntimeException ex ) {
+            LOGGER.log( Level.SEVERE, "Cannot load devices from " + file, ex );
+            deviceLookup.clear();
+            revisionLookup.clear();
+            try {
+                Files.move( file.toPath(), new File( file.getParentFile(), file.getName() + ".bad" ).toPath(), StandardCopyOption.REPLACE_EXISTING );
+            } catch ( IOException moveEx ) {
+                LOGGER.log( Level.WARNING, "Cannot move device store " + file + " aside", moveEx );
+            }
+            return false;
+        }
+    }
+    
+    private void read( File file ) throws IOException {
+        CRC32 crc = new CRC32();
+        try ( DataInputStream in = new DataInputStream( new CheckedInputStream( new BufferedInputStream( new FileInputStream( file ) ), crc ) ) ) {
+            int version = in.readInt();
+            if ( version != STORE_VERSION ) {
+                throw new IOException( "Unsupported device store version: " + version );
+            }
+            int count = in.readInt();
+            for ( int i=0; i<count; i++ ) {
+                Device d = new Device( in.readUTF(), readNullableUTF(in), readNullableUTF(in), in.readInt() );
+                deviceLookup.put( d.getId(), d );
+                revisionLookup.put( d.getId(), new Revision( ++lastVersion, file.lastModified() ) );
+            }
+            int expectedCrc = (int) crc.getValue();
+            if ( in.readInt() != expectedCrc ) {
+                throw new IOException( "Device store checksum mismatch" );
+            }
+        }
+    }
+    
+    // Rewrites the whole store (version, devices, CRC32 of the preceding bytes).
+    // Devices change rarely and there are few of them, so the store is always
+    // a complete snapshot of the registry. The one it replaces is kept as the
+    // previous store.
+    private void save() {
+        if ( storeFile == null ) return;
+        File tempFile = new File( storeFile.getPath() + ".tmp" );
+        storeFile.getParentFile().mkdirs();
+        try {
+            try ( FileOutputStream fileOut = new FileOutputStream( tempFile ) ) {
+                CRC32 crc = new CRC32();
+                DataOutputStream out = new DataOutputStream( new CheckedOutputStream( new BufferedOutputStream( fileOut ), crc ) );
+                out.writeInt( STORE_VERSION );
+                out.writeInt( deviceLookup.size() );
+                for ( Device d : deviceLookup.values() ) {
+                    out.writeUTF( d.getId() );
+                    writeNullableUTF( out, d.getDisplayName() );
+                    writeNullableUTF( out, d.getTimeZone() );
+                    out.writeInt( d.getDailyRation() );
+                }
+                out.writeInt( (int) crc.getValue() );
+                out.flush();
+                fileOut.getFD().sync();
+            }
+            if ( storeFile.exists() ) {
+                Files.move( storeFile.toPath(), previousFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+            }
+            Files.move( tempFile.toPath(), storeFile.toPath(), StandardCopyOption.ATOMIC_MOVE );
+        } catch ( IOException ex ) {
+            throw new UncheckedIOException( "Cannot save devices to " + storeFile, ex );
+        }
+    }
+    
+    private static final class Revision {
+        
+        final long version;
+        final long lastModifiedMillis;
+        
+        Revision( long version, long lastModifiedMillis ) {
+            this.version = version;
+            this.lastModifiedMillis = lastModifiedMillis;
+        }
+        
+    }
+    
+    private static String readNullableUTF( DataInputStream in ) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+    
+    private static void writeNullableUTF( DataOutputStream out, String value ) throws IOException {
+        out.writeBoolean( value != null );
+        if ( value != null ) {
+            out.writeUTF( value );
+        }
+    }
+    
 }
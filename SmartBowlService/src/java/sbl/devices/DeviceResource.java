@@ -26,16 +26,23 @@ SOFTWARE.
 
 package sbl.devices;
 
+import java.net.URI;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.Produces;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PUT;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
+import sbl.CacheValidators;
+import sbl.RequestExecutor;
 
 @Path("devices")
 public class DeviceResource {
@@ -49,24 +56,47 @@ public class DeviceResource {
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @Path("{device}")
-    public Device getDevice( @PathParam("device") String id ) {
-        return DeviceDAO.getInstance().getDevice(id);
+    public void getDevice( @PathParam("device") String id, @Context Request request, @Suspended AsyncResponse response ) {
+        RequestExecutor.DASHBOARD.submit( response, () -> getDevice(id, request) );
+    }
+    
+    private Response getDevice( String id, Request request ) {
+        DeviceDAO deviceDAO = DeviceDAO.getInstance();
+        long lastModified = deviceDAO.getLastModified(id);
+        EntityTag tag = CacheValidators.entityTag( deviceDAO.getVersion(id) );
+        Response notModified = CacheValidators.notModified( request, lastModified, tag );
+        if ( notModified != null ) {
+            return notModified;
+        }
+        
+        // The version is read first, so a concurrent update can only make the
+        // tag older than the device, which merely costs another download
+        Device device = deviceDAO.getDevice(id);
+        if ( device == null ) {
+            return Response.noContent().build();
+        }
+        return CacheValidators.ok( device, lastModified, tag ).build();
     }
 
     @PUT
     @Consumes(MediaType.APPLICATION_JSON)
     @Path("{device}")
-    public Response putDevice(@PathParam("device") String id, Device device) {        
+    public void putDevice(@PathParam("device") String id, Device device, @Suspended AsyncResponse response) {        
+        URI location = uriInfo.getAbsolutePath();
+        RequestExecutor.DASHBOARD.submit( response, () -> putDevice(id, device, location) );
+    }
+    
+    private Response putDevice( String id, Device device, URI location ) {
         if ( !id.equals( device.getId() ) ) {
             return Response.serverError().build();
         }
         
         if ( DeviceDAO.getInstance().containsDevice( device.getId() ) ) {
             DeviceDAO.getInstance().updateDevice( device );
-            return Response.accepted(uriInfo.getAbsolutePath()).build();
+            return Response.accepted(location).build();
         } else {            
             DeviceDAO.getInstance().addDevice( device );
-            return Response.created(uriInfo.getAbsolutePath()).build();
+            return Response.created(location).build();
         }
     }
     
@@ -0,0 +1,63 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Request counts by status class and latencies of a single REST endpoint
+final class EndpointMetrics {
+
+    private final String name;
+    private final LongAdder[] counts = new LongAdder[6];  // By status/100, 0 for anything unexpected
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    EndpointMetrics( String name ) {
+        this.name = name;
+        for ( int i=0; i<counts.length; i++ ) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    long getCount( int statusClass ) {
+        return counts[statusClass].sum();
+    }
+
+    LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    void record( int status, long nanos ) {
+        int statusClass = status/100;
+        counts[ statusClass >= 1 && statusClass <= 5 ? statusClass : 0 ].increment();
+        latencies.record( nanos );
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.metrics;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Flight Recorder events of the storage and rendering. The events themselves
+// extend jdk.jfr.Event, which not every Java 8 runtime has, so they are
+// compiled separately from src/jfr and only loaded when the running JVM has
+// Flight Recorder. Elsewhere every event is a shared no-op.
+public abstract class FlightRecorderEvents {
+
+    private static final Logger LOG = Logger.getLogger( FlightRecorderEvents.class.getName() );
+
+    private static final FlightRecorderEvents INSTANCE = load();
+
+    public static FlightRecorderEvents getInstance() {
+        return INSTANCE;
+    }
+
+    private static FlightRecorderEvents load() {
+        try {
+            Class.forName( "jdk.jfr.FlightRecorder" );
+        } catch ( ClassNotFoundException ex ) {
+            LOG.info( "Flight Recorder is not available, its events are disabled" );
+            return Disabled.INSTANCE;
+        }
+        try {
+            return (FlightRecorderEvents) Class.forName( "sbl.metrics.jfr.JfrEvents" ).newInstance();
+        } catch ( ReflectiveOperationException | LinkageError ex ) {
+            LOG.log( Level.INFO, "Flight Recorder events are not available, they are disabled", ex );
+            return Disabled.INSTANCE;
+        }
+    }
+
+
+    protected FlightRecorderEvents() {
+    }
+
+    // Each beginX() starts timing an event, its commit(...) ends it and
+    // records it if Flight Recorder wants it
+
+    public abstract IngestEvent beginIngest();
+
+    public abstract QueryEvent beginQuery();
+
+    public abstract AggregationEvent beginAggregation();
+
+    public abstract RenderEvent beginRender();
+
+    public abstract TemplateCompileEvent beginTemplateCompile();
+
+    public abstract PageRenderEvent beginPageRender();
+
+    public interface IngestEvent {
+        void commit( String deviceId, int entryCount, long lockWait );
+    }
+
+    public interface QueryEvent {
+        void commit( String deviceId, String tier, long from, long to, int entryCount, long lockWait );
+    }
+
+    public interface AggregationEvent {
+        void commit( String kind, String deviceId, int deviceCount, int bucketCount, long lockWait );
+    }
+
+    public interface RenderEvent {
+        void commit( String deviceId, String format, int entryCount, long bytes );
+    }
+
+    public interface TemplateCompileEvent {
+        void commit( long version );
+    }
+
+    public interface PageRenderEvent {
+        void commit( String deviceId, long templateVersion, long bytes, long gzippedBytes );
+    }
+
+    private static final class Disabled extends FlightRecorderEvents implements IngestEvent, QueryEvent, AggregationEvent,
+            RenderEvent, TemplateCompileEvent, PageRenderEvent {
+
+        static final Disabled INSTANCE = new Disabled();
+
+        @Override
+        public IngestEvent beginIngest() {
+            return this;
+        }
+
+        @Override
+        public QueryEvent beginQuery() {
+            return this;
+        }
+
+        @Override
+        public AggregationEvent beginAggregation() {
+            return this;
+        }
+
+        @Override
+        public RenderEvent beginRender() {
+            return this;
+        }
+
+        @Override
+        public TemplateCompileEvent beginTemplateCompile() {
+            return this;
+        }
+
+        @Override
+        public PageRenderEvent beginPageRender() {
+            return this;
+        }
+
+        @Override
+        public void commit( String deviceId, int entryCount, long lockWait ) {
+        }
+
+        @Override
+        public void commit( String deviceId, String tier, long from, long to, int entryCount, long lockWait ) {
+        }
+
+        @Override
+        public void commit( String kind, String deviceId, int deviceCount, int bucketCount, long lockWait ) {
+        }
+
+        @Override
+        public void commit( String deviceId, String format, int entryCount, long bytes ) {
+        }
+
+        @Override
+        public void commit( long version ) {
+        }
+
+        @Override
+        public void commit( String deviceId, long templateVersion, long bytes, long gzippedBytes ) {
+        }
+
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free histogram of durations in nanoseconds, in the spirit of
+// HdrHistogram: values below 128 are counted exactly, larger ones in 64
+// sub-buckets per power of two, so every percentile is within 1.6%. Recording
+// takes a few atomic increments and never allocates.
+public final class LatencyHistogram {
+
+    private static final int EXACT_COUNT = 128;
+    private static final int SUB_BUCKET_COUNT = 64;
+    private static final int BUCKET_COUNT = EXACT_COUNT + (63 - 7)*SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray( BUCKET_COUNT );
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record( long nanos ) {
+        long value = Math.max( 0, nanos );
+        counts.incrementAndGet( indexOf( value ) );
+        totalNanos.add( value );
+        // Only contended while the maximum is still growing
+        long max = maxNanos.get();
+        while ( value > max && !maxNanos.compareAndSet( max, value ) ) {
+            max = maxNanos.get();
+        }
+    }
+
+    // The count is not kept separately, to save recording an atomic increment
+    public long getCount() {
+        long ret = 0;
+        for ( int i=0; i<BUCKET_COUNT; i++ ) {
+            ret += counts.get(i);
+        }
+        return ret;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    // Returns the value that the given fraction (e.g. 0.99) of the recorded
+    // values does not exceed, as the upper end of its bucket
+    public long getPercentile( double fraction ) {
+        long[] snapshot = snapshot();
+        long count = 0;
+        for ( long c : snapshot ) {
+            count += c;
+        }
+        if ( count == 0 ) return 0;
+        long target = Math.max( 1, (long) Math.ceil( fraction*count ) );
+        long seen = 0;
+        for ( int i=0; i<BUCKET_COUNT; i++ ) {
+            seen += snapshot[i];
+            if ( seen >= target ) {
+                return Math.min( upperBoundOf(i), maxNanos.get() );
+            }
+        }
+        return maxNanos.get();
+    }
+
+    // Returns how many of the recorded values fall into each of the ranges
+    // ending at the given (ascending) bounds, cumulatively like Prometheus
+    // buckets. A value shares its bucket with others within 1.6% of it, and a
+    // bucket reaching past a bound is only counted under the next one, so
+    // values right below a bound may be counted above it.
+    public long[] getCumulativeCounts( long[] boundNanos ) {
+        long[] snapshot = snapshot();
+        long[] ret = new long[ boundNanos.length ];
+        long seen = 0;
+        int bound = 0;
+        for ( int i=0; i<BUCKET_COUNT && bound < boundNanos.length; i++ ) {
+            while ( bound < boundNanos.length && upperBoundOf(i) > boundNanos[bound] ) {
+                ret[bound++] = seen;
+            }
+            seen += snapshot[i];
+        }
+        while ( bound < boundNanos.length ) {
+            ret[bound++] = seen;
+        }
+        return ret;
+    }
+
+    private long[] snapshot() {
+        long[] ret = new long[BUCKET_COUNT];
+        for ( int i=0; i<BUCKET_COUNT; i++ ) {
+            ret[i] = counts.get(i);
+        }
+        return ret;
+    }
+
+    private static int indexOf( long value ) {
+        if ( value < EXACT_COUNT ) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros( value );  // 7 or more
+        int mantissa = (int) (value >>> (exponent - 6));  // 64 to 127
+        return EXACT_COUNT + (exponent - 7)*SUB_BUCKET_COUNT + (mantissa - SUB_BUCKET_COUNT);
+    }
+
+    private static long upperBoundOf( int index ) {
+        if ( index < EXACT_COUNT ) return index;
+        int exponent = (index - EXACT_COUNT)/SUB_BUCKET_COUNT + 7;
+        long mantissa = (index - EXACT_COUNT)%SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((mantissa + 1) << (exponent - 6)) - 1;
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+// Counters, gauges and latency histograms of the whole service, exported in
+// the Prometheus text format by MetricsResource. Counters and histograms are
+// updated in place, gauges are only computed when the metrics are read.
+// Histograms are exported in seconds.
+public final class Metrics {
+
+    static final String REQUESTS = "sbl_http_requests_total";
+    static final String REQUEST_DURATION = "sbl_http_request_duration_seconds";
+
+    // Upper bounds of the exported histogram buckets, in seconds
+    private static final double[] BUCKET_BOUNDS = { 
+        0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 
+    };
+    private static final long[] BUCKET_BOUND_NANOS_AND_INFINITY = new long[ BUCKET_BOUNDS.length + 1 ];
+    static {
+        for ( int i=0; i<BUCKET_BOUNDS.length; i++ ) {
+            BUCKET_BOUND_NANOS_AND_INFINITY[i] = (long) (BUCKET_BOUNDS[i]*1e9);
+        }
+        BUCKET_BOUND_NANOS_AND_INFINITY[ BUCKET_BOUNDS.length ] = Long.MAX_VALUE;
+    }
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    public static Metrics getInstance() {
+        return INSTANCE;
+    }
+
+
+    private final ConcurrentMap <String, Family> families = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap <String, EndpointMetrics> endpoints = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    // Returns the counter with the given name, registering it first if needed
+    public LongAdder counter( String name, String help ) {
+        return (LongAdder) families.computeIfAbsent( name, n -> new Family( help, "counter", new LongAdder() ) ).instrument;
+    }
+
+    // Registers a counter kept elsewhere, replacing any previous one of that name
+    public void counter( String name, String help, LongSupplier value ) {
+        families.put( name, new Family( help, "counter", value ) );
+    }
+
+    // Registers a gauge, replacing any previous one of that name
+    public void gauge( String name, String help, DoubleSupplier value ) {
+        families.put( name, new Family( help, "gauge", value ) );
+    }
+
+    // Returns the histogram with the given name, registering it first if needed
+    public LatencyHistogram histogram( String name, String help ) {
+        return (LatencyHistogram) families.computeIfAbsent( name, n -> new Family( help, "histogram", new LatencyHistogram() ) ).instrument;
+    }
+
+    EndpointMetrics endpoint( String name ) {
+        return endpoints.computeIfAbsent( name, EndpointMetrics::new );
+    }
+
+    // Writes everything in version 0.0.4 of the Prometheus text format
+    public void writeTo( Writer out ) throws IOException {
+        out.write( "# HELP " + REQUESTS + " Requests answered by the REST endpoints, by status class\n" );
+        out.write( "# TYPE " + REQUESTS + " counter\n" );
+        for ( EndpointMetrics endpoint : endpoints.values() ) {
+            String labels = "endpoint=\"" + escape( endpoint.getName() ) + "\"";
+            for ( int statusClass=1; statusClass<=5; statusClass++ ) {
+                long count = endpoint.getCount( statusClass );
+                if ( count > 0 ) {
+                    writeSample( out, REQUESTS, labels + ",status=\"" + statusClass + "xx\"", count );
+                }
+            }
+        }
+        out.write( "# HELP " + REQUEST_DURATION + " Time from receiving a request until its response is ready, including the wait for a request pool\n" );
+        out.write( "# TYPE " + REQUEST_DURATION + " histogram\n" );
+        for ( EndpointMetrics endpoint : endpoints.values() ) {
+            writeHistogram( out, REQUEST_DURATION, "endpoint=\"" + escape( endpoint.getName() ) + "\"", endpoint.getLatencies() );
+        }
+
+        for ( Map.Entry<String, Family> entry : families.entrySet() ) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.write( "# HELP " + name + " " + family.help + "\n" );
+            out.write( "# TYPE " + name + " " + family.type + "\n" );
+            Object instrument = family.instrument;
+            if ( instrument instanceof LatencyHistogram ) {
+                writeHistogram( out, name, "", (LatencyHistogram) instrument );
+            } else if ( instrument instanceof LongAdder ) {
+                writeSample( out, name, "", ((LongAdder) instrument).sum() );
+            } else if ( instrument instanceof LongSupplier ) {
+                writeSample( out, name, "", ((LongSupplier) instrument).getAsLong() );
+            } else {
+                writeSample( out, name, "", format( ((DoubleSupplier) instrument).getAsDouble() ) );
+            }
+        }
+    }
+
+    private static void writeHistogram( Writer out, String name, String labels, LatencyHistogram histogram ) throws IOException {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        // The total comes from the same snapshot as the buckets, so they agree
+        long[] counts = histogram.getCumulativeCounts( BUCKET_BOUND_NANOS_AND_INFINITY );
+        for ( int i=0; i<BUCKET_BOUNDS.length; i++ ) {
+            writeSample( out, name + "_bucket", prefix + "le=\"" + BigDecimal.valueOf( BUCKET_BOUNDS[i] ).toPlainString() + "\"", counts[i] );
+        }
+        long count = counts[ BUCKET_BOUNDS.length ];
+        writeSample( out, name + "_bucket", prefix + "le=\"+Inf\"", count );
+        writeSample( out, name + "_sum", labels, format( histogram.getTotalNanos()/1e9 ) );
+        writeSample( out, name + "_count", labels, count );
+    }
+
+    private static void writeSample( Writer out, String name, String labels, long value ) throws IOException {
+        writeSample( out, name, labels, Long.toString( value ) );
+    }
+
+    private static void writeSample( Writer out, String name, String labels, String value ) throws IOException {
+        out.write( name );
+        if ( !labels.isEmpty() ) {
+            out.write( '{' );
+            out.write( labels );
+            out.write( '}' );
+        }
+        out.write( ' ' );
+        out.write( value );
+        out.write( '\n' );
+    }
+
+    private static String format( double value ) {
+        if ( Double.isNaN( value ) ) return "NaN";
+        if ( Double.isInfinite( value ) ) return value > 0 ? "+Inf" : "-Inf";
+        if ( value == Math.rint( value ) && Math.abs( value ) < 1e15 ) return Long.toString( (long) value );
+        return Double.toString( value );
+    }
+
+    private static String escape( String labelValue ) {
+        return labelValue.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ).replace( "\n", "\\n" );
+    }
+
+    private static final class Family {
+
+        final String help;
+        final String type;
+        final Object instrument;  // LongAdder, LongSupplier, DoubleSupplier or LatencyHistogram
+
+        Family( String help, String type, Object instrument ) {
+            this.help = help;
+            this.type = type;
+            this.instrument = instrument;
+        }
+
+    }
+
+}
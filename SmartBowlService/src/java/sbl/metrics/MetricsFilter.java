@@ -0,0 +1,77 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.metrics;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+
+// Times every request from before it is matched to a resource until its
+// response is ready, and counts it under its resource method, e.g.
+// "DataSetResource.getDataSet". For requests handed over to a request pool the
+// response is ready when the handler resumes it, so the wait for the pool is
+// included. Requests that match no resource method count as "unmatched".
+@Provider
+@PreMatching
+public class MetricsFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+    private static final String START_PROPERTY = MetricsFilter.class.getName() + ".start";
+    private static final ConcurrentMap <Method, EndpointMetrics> ENDPOINTS = new ConcurrentHashMap<>();
+    private static final EndpointMetrics UNMATCHED = Metrics.getInstance().endpoint( "unmatched" );
+
+    @Context
+    private ResourceInfo resourceInfo;
+
+    @Override
+    public void filter( ContainerRequestContext requestContext ) throws IOException {
+        requestContext.setProperty( START_PROPERTY, System.nanoTime() );
+    }
+
+    @Override
+    public void filter( ContainerRequestContext requestContext, ContainerResponseContext responseContext ) throws IOException {
+        Object start = requestContext.getProperty( START_PROPERTY );
+        if ( start == null ) return;
+        long nanos = System.nanoTime() - (Long) start;
+        Method method = resourceInfo.getResourceMethod();
+        EndpointMetrics endpoint = method == null ? UNMATCHED : ENDPOINTS.get( method );
+        if ( endpoint == null ) {
+            endpoint = ENDPOINTS.computeIfAbsent( method, m -> 
+                Metrics.getInstance().endpoint( m.getDeclaringClass().getSimpleName() + "." + m.getName() ) );
+        }
+        endpoint.record( responseContext.getStatus(), nanos );
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+import sbl.metrics.FlightRecorderEvents;
+
+// Flight Recorder event of the daily consumption of a device or the fleet
+// totals being summed up
+@Name("sbl.Aggregation")
+@Label("Data Set Aggregation")
+@Category({"SmartBowl", "Data Sets"})
+@Description("Daily consumption of a device or fleet totals summed up from the stored entries")
+@Threshold("1 ms")
+final class JfrAggregationEvent extends Event implements FlightRecorderEvents.AggregationEvent {
+
+    @Label("Kind")
+    @Description("dailyConsumption or fleetTotals")
+    String kind;
+
+    @Label("Device ID")
+    @Description("Device whose daily consumption was summed up, none for fleet totals")
+    String deviceId;
+
+    @Label("Device Count")
+    int deviceCount;
+
+    @Label("Bucket Count")
+    @Description("Time buckets produced, a single day for the daily consumption")
+    int bucketCount;
+
+    @Label("Lock Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long lockWait;
+
+    @Override
+    public void commit( String kind, String deviceId, int deviceCount, int bucketCount, long lockWait ) {
+        end();
+        if ( shouldCommit() ) {
+            this.kind = kind;
+            this.deviceId = deviceId;
+            this.deviceCount = deviceCount;
+            this.bucketCount = bucketCount;
+            this.lockWait = lockWait;
+            commit();
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.metrics.jfr;
+
+import sbl.metrics.FlightRecorderEvents;
+
+// The Flight Recorder events, loaded by FlightRecorderEvents only when the
+// running JVM has jdk.jfr
+public final class JfrEvents extends FlightRecorderEvents {
+
+    @Override
+    public IngestEvent beginIngest() {
+        JfrIngestEvent event = new JfrIngestEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public QueryEvent beginQuery() {
+        JfrQueryEvent event = new JfrQueryEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public AggregationEvent beginAggregation() {
+        JfrAggregationEvent event = new JfrAggregationEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public RenderEvent beginRender() {
+        JfrRenderEvent event = new JfrRenderEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public TemplateCompileEvent beginTemplateCompile() {
+        JfrTemplateCompileEvent event = new JfrTemplateCompileEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public PageRenderEvent beginPageRender() {
+        JfrPageRenderEvent event = new JfrPageRenderEvent();
+        event.begin();
+        return event;
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import sbl.metrics.FlightRecorderEvents;
+
+// Flight Recorder event of a device's dashboard page being rendered
+@Name("sbl.PageRender")
+@Label("Dashboard Page Rendering")
+@Category({"SmartBowl", "Dashboards"})
+@Description("A device's dashboard page rendered from the template and gzipped")
+@Threshold("1 ms")
+final class JfrPageRenderEvent extends Event implements FlightRecorderEvents.PageRenderEvent {
+
+    @Label("Device ID")
+    String deviceId;
+
+    @Label("Template Version")
+    long templateVersion;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Gzipped Bytes")
+    @DataAmount
+    long gzippedBytes;
+
+    @Override
+    public void commit( String deviceId, long templateVersion, long bytes, long gzippedBytes ) {
+        end();
+        if ( shouldCommit() ) {
+            this.deviceId = deviceId;
+            this.templateVersion = templateVersion;
+            this.bytes = bytes;
+            this.gzippedBytes = gzippedBytes;
+            commit();
+        }
+    }
+
+}
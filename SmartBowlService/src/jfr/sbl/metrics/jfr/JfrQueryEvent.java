@@ -0,0 +1,82 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+import sbl.metrics.FlightRecorderEvents;
+
+// Flight Recorder event of entries being copied out of a data set
+@Name("sbl.Query")
+@Label("Data Set Query")
+@Category({"SmartBowl", "Data Sets"})
+@Description("Entries copied out of a data set, including the wait for its lock")
+@Threshold("1 ms")
+final class JfrQueryEvent extends Event implements FlightRecorderEvents.QueryEvent {
+
+    @Label("Device ID")
+    String deviceId;
+
+    @Label("Tier")
+    @Description("Tier the entries came from: raw, minute, hour or day")
+    String tier;
+
+    @Label("From")
+    @Description("Start of the requested range in epoch seconds, if any")
+    long from;
+
+    @Label("To")
+    @Description("End of the requested range in epoch seconds, if any")
+    long to;
+
+    @Label("Entry Count")
+    int entryCount;
+
+    @Label("Lock Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long lockWait;
+
+    @Override
+    public void commit( String deviceId, String tier, long from, long to, int entryCount, long lockWait ) {
+        end();
+        if ( shouldCommit() ) {
+            this.deviceId = deviceId;
+            this.tier = tier;
+            this.from = from;
+            this.to = to;
+            this.entryCount = entryCount;
+            this.lockWait = lockWait;
+            commit();
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.metrics.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import sbl.metrics.FlightRecorderEvents;
+
+// Flight Recorder event of entries being written out as CSV or in the binary
+// format. Streamed responses are written straight to the client, so their
+// duration includes how fast the client reads.
+@Name("sbl.Render")
+@Label("Data Set Rendering")
+@Category({"SmartBowl", "Data Sets"})
+@Description("Entries written out as CSV or in the binary format")
+@Threshold("1 ms")
+final class JfrRenderEvent extends Event implements FlightRecorderEvents.RenderEvent {
+
+    @Label("Device ID")
+    @Description("Device whose entries were written, none for several devices")
+    String deviceId;
+
+    @Label("Format")
+    @Description("csv or binary")
+    String format;
+
+    @Label("Entry Count")
+    int entryCount;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Override
+    public void commit( String deviceId, String format, int entryCount, long bytes ) {
+        end();
+        if ( shouldCommit() ) {
+            this.deviceId = deviceId;
+            this.format = format;
+            this.entryCount = entryCount;
+            this.bytes = bytes;
+            commit();
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BinaryFormatTest {
+
+    private static final long START = 1500000000L;
+    private static final double MAX_SATURATED = (Long.MAX_VALUE - 1) / 100.0;
+    private static final double MAX_EXACT = (1L << 53) / 100.0;  // Hundredths below it convert to a double exactly
+
+    @Test
+    public void readsEmptySeries() throws IOException {
+        byte[] bytes = write( new DataSeries( 0 ) );
+        assertEquals( 6, bytes.length );
+        BinaryDataSetReader reader = new BinaryDataSetReader( new ByteArrayInputStream( bytes ) );
+        assertEquals( 0, reader.getCount() );
+        assertFalse( reader.next() );
+        assertTrue( BinaryDataSetReader.readAll( new ByteArrayInputStream( bytes ) ).isEmpty() );
+    }
+
+    @Test
+    public void roundTripsRegularEntries() throws IOException {
+        Random random = new Random( 42 );
+        DataSeries entries = new DataSeries( 20000 );
+        long timestamp = START;
+        for ( int i=0; i<20000; i++ ) {
+            // Mostly a minute apart, sometimes late or long after
+            timestamp += i%100 == 0 ? -3600 : i%1000 == 1 ? 86400*30 : 60;
+            entries.add( timestamp, random.nextDouble()*1000, random.nextDouble()*10, i%50 == 0 ? 250 : 0, random.nextInt(5) - 1 );
+        }
+        assertRoundTrip( entries );
+    }
+
+    @Test
+    public void roundTripsExtremeEntries() throws IOException {
+        double[] amounts = {
+            0, -0.0, 0.005, 0.015, 0.125, -0.125, 12.345, -7.5, 999999999.995, 1e9, -1e9, 1000000000.005, -12345678901.125, 123456789012.34, 1e15, 9e16, 1e17, 1e292,
+            Double.MAX_VALUE, -Double.MAX_VALUE, Double.MIN_VALUE, -Double.MIN_VALUE, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+        };
+        // From the start to the end of what the CSV can show, across the
+        // year 10000 where its slow path takes over
+        long[] timestamps = { 0, -1, START, Instant.MIN.getEpochSecond(), Instant.MAX.getEpochSecond(), 253402300799L, 253402300800L, 1, -START };
+        int[] refills = { 0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        DataSeries entries = new DataSeries( amounts.length*amounts.length );
+        for ( int i=0; i<amounts.length*amounts.length; i++ ) {
+            entries.add( timestamps[ i % timestamps.length ], amounts[ i % amounts.length ], amounts[ i / amounts.length ], 
+                amounts[ (i*7) % amounts.length ], refills[ i % refills.length ] );
+        }
+        assertRoundTrip( entries );
+    }
+
+    // Beyond what the CSV can show, so only checked against the written entries
+    @Test
+    public void roundTripsExtremeTimestamps() throws IOException {
+        long[] timestamps = { Long.MIN_VALUE, Long.MAX_VALUE, 0, Long.MAX_VALUE, Long.MIN_VALUE + 1, -1, Long.MIN_VALUE };
+        DataSeries entries = new DataSeries( timestamps.length );
+        for ( long timestamp : timestamps ) {
+            entries.add( timestamp, 1.5, 0, 0, 0 );
+        }
+        List <DataSetEntry> read = BinaryDataSetReader.readAll( new ByteArrayInputStream( write( entries ) ) );
+        assertEntries( entries, read );
+        for ( DataSetEntry entry : read ) {
+            assertEquals( 1.5, entry.getAmountRemaining(), 0 );
+        }
+    }
+
+    private static byte[] write( DataSeries entries ) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryWriter writer = new BinaryWriter( bytes );
+        writer.writeHeader( entries.size() );
+        writer.writeEntries( entries );
+        writer.flush();
+        assertEquals( bytes.size(), writer.getBytesWritten() );
+        return bytes.toByteArray();
+    }
+
+    private static void assertRoundTrip( DataSeries entries ) throws IOException {
+        byte[] bytes = write( entries );
+        List <DataSetEntry> all = BinaryDataSetReader.readAll( new ByteArrayInputStream( bytes ) );
+        assertEntries( entries, all );
+        // The streaming reader decodes the same
+        BinaryDataSetReader reader = new BinaryDataSetReader( new ByteArrayInputStream( bytes ) );
+        assertEquals( entries.size(), reader.getCount() );
+        for ( DataSetEntry entry : all ) {
+            assertTrue( reader.next() );
+            assertEquals( entry.getTimestamp(), reader.getTimestamp() );
+            assertEquals( entry.getAmountRemaining(), reader.getAmountRemaining(), 0 );
+            assertEquals( entry.getAmountConsumed(), reader.getAmountConsumed(), 0 );
+            assertEquals( entry.getAmountAdded(), reader.getAmountAdded(), 0 );
+            assertEquals( entry.getNumRefills(), reader.getNumRefills() );
+        }
+        assertFalse( reader.next() );
+    }
+
+    // Reads back what CsvWriter writes for the same entries, which is what
+    // the binary format has to agree with
+    private static void assertEntries( DataSeries entries, List<DataSetEntry> read ) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CsvWriter csv = new CsvWriter( bytes );
+        csv.writeHeader();
+        boolean fitsCsv = true;
+        for ( int i=0; i<entries.size(); i++ ) {
+            long timestamp = entries.getTimestamp(i);
+            fitsCsv &= timestamp >= Instant.MIN.getEpochSecond() && timestamp <= Instant.MAX.getEpochSecond();
+        }
+        if ( fitsCsv ) {
+            csv.writeRows( entries );
+        }
+        csv.flush();
+        String[] rows = new String( bytes.toByteArray(), StandardCharsets.UTF_8 ).split( "\n" );
+        assertEquals( entries.size(), read.size() );
+        for ( int i=0; i<entries.size(); i++ ) {
+            DataSetEntry entry = read.get(i);
+            assertEquals( entries.getTimestamp(i), entry.getTimestamp() );
+            if ( fitsCsv ) {
+                String[] fields = rows[i+1].split( "," );
+                String at = "row " + (i+1) + ": " + rows[i+1];
+                assertEquals( at, Instant.parse( fields[0] ).getEpochSecond(), entry.getTimestamp() );
+                assertAmount( at, fields[1], entry.getAmountRemaining() );
+                assertAmount( at, fields[2], entry.getAmountConsumed() );
+                assertAmount( at, fields[3], entry.getAmountAdded() );
+                assertEquals( at, Integer.parseInt( fields[4] ), entry.getNumRefills() );
+            }
+            assertEquals( entries.getNumRefills(i), entry.getNumRefills() );
+        }
+    }
+
+    // Amounts come back as the CSV shows them, rounded to hundredths, up to
+    // the largest number of hundredths a long holds
+    private static void assertAmount( String message, String csv, double read ) {
+        double value = Double.parseDouble( csv );
+        if ( Double.isNaN( value ) || Double.isInfinite( value ) ) {
+            assertEquals( message, value, read, 0 );
+        } else if ( Math.abs( value ) >= MAX_SATURATED ) {
+            assertEquals( message, Math.copySign( MAX_SATURATED, value ), read, 0 );
+        } else if ( Math.abs( value ) < MAX_EXACT ) {
+            assertEquals( message, value, read, 0 );
+        } else {
+            // The hundredths no longer fit a double's mantissa
+            assertEquals( message, value, read, Math.ulp( read ) );
+        }
+    }
+
+}
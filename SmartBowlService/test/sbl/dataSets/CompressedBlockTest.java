@@ -0,0 +1,107 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CompressedBlockTest {
+
+    private static final long START = 1500000000L;
+
+    @Test
+    public void roundTripsRegularEntries() {
+        Random random = new Random( 5 );
+        DataSeries entries = new DataSeries( RawSeries.BLOCK_SIZE );
+        long timestamp = START;
+        double amount = 500;
+        for ( int i=0; i<RawSeries.BLOCK_SIZE; i++ ) {
+            // A bowl is mostly left alone between uploads
+            timestamp += 60 + random.nextInt( 5 ) - 2;
+            double consumed = random.nextInt( 4 ) == 0 ? random.nextInt( 300 )/100.0 : 0;
+            amount -= consumed;
+            entries.add( timestamp, amount, consumed, 0, i/100, i+1 );
+        }
+        CompressedBlock block = assertRoundTrip( entries );
+        // The point of the encoding: far fewer bytes than the 44 per entry of
+        // a DataSeries
+        assertTrue( block.getSizeInBytes() < 8*entries.size() );
+    }
+
+    // Every class of delta-of-delta at its bounds, random bit patterns for the
+    // amounts, and entry numbers that jump around
+    @Test
+    public void roundTripsArbitraryEntries() {
+        Random random = new Random( 9 );
+        long[] deltasOfDeltas = { 0, 1, -1, 63, -64, 64, -65, 255, -256, 256, -257, 2047, -2048, 2048, -2049, Long.MAX_VALUE, Long.MIN_VALUE };
+        DataSeries entries = new DataSeries( 4000 );
+        long timestamp = Long.MIN_VALUE;
+        long delta = 0;
+        for ( int i=0; i<4000; i++ ) {
+            delta += i < 2*deltasOfDeltas.length ? deltasOfDeltas[ i/2 ] : random.nextInt( 4 ) == 0 ? random.nextLong() : random.nextInt( 5000 ) - 2500;
+            timestamp += delta;
+            long sequence = random.nextInt( 3 ) == 0 ? random.nextLong() : i;
+            entries.add( timestamp, Double.longBitsToDouble( random.nextLong() ), random.nextBoolean() ? 0.0 : -0.0, 
+                random.nextInt( 4 ) == 0 ? Double.NaN : Double.longBitsToDouble( random.nextLong() >>> random.nextInt( 64 ) ), random.nextInt(), sequence );
+        }
+        assertRoundTrip( entries );
+    }
+
+    @Test
+    public void roundTripsSingleEntry() {
+        DataSeries entries = new DataSeries( 1 );
+        entries.add( Long.MAX_VALUE, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, -0.0, Integer.MIN_VALUE, Long.MIN_VALUE );
+        CompressedBlock block = assertRoundTrip( entries );
+        assertEquals( Long.MAX_VALUE, block.getFirstTimestamp() );
+        assertEquals( Long.MAX_VALUE, block.getLastTimestamp() );
+    }
+
+    private static CompressedBlock assertRoundTrip( DataSeries entries ) {
+        CompressedBlock block = CompressedBlock.of( entries );
+        assertEquals( entries.size(), block.size() );
+        long maxSequence = 0;
+        CompressedBlock.Reader reader = block.reader();
+        for ( int i=0; i<entries.size(); i++ ) {
+            String at = "entry " + i;
+            assertTrue( at, reader.next() );
+            assertEquals( at, entries.getTimestamp(i), reader.getTimestamp() );
+            assertEquals( at, Double.doubleToRawLongBits( entries.getAmountRemaining(i) ), Double.doubleToRawLongBits( reader.getAmountRemaining() ) );
+            assertEquals( at, Double.doubleToRawLongBits( entries.getAmountConsumed(i) ), Double.doubleToRawLongBits( reader.getAmountConsumed() ) );
+            assertEquals( at, Double.doubleToRawLongBits( entries.getAmountAdded(i) ), Double.doubleToRawLongBits( reader.getAmountAdded() ) );
+            assertEquals( at, entries.getNumRefills(i), reader.getNumRefills() );
+            assertEquals( at, entries.getSequence(i), reader.getSequence() );
+            maxSequence = Math.max( maxSequence, entries.getSequence(i) );
+        }
+        assertFalse( reader.next() );
+        assertEquals( entries.getTimestamp(0), block.getFirstTimestamp() );
+        assertEquals( entries.getTimestamp( entries.size()-1 ), block.getLastTimestamp() );
+        assertEquals( maxSequence, block.getMaxSequence() );
+        return block;
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CsvWriterTest {
+
+    private static final long START = 1500000000L;
+
+    // Amounts of every length, from the fast path to the longest that
+    // String.format("%.2f") produces
+    private static final double[] AMOUNTS = {
+        0, 0.005, 0.125, 12.345, -7.5, 999999999.99, 1e9, -1e9, 1e15, 1e292, -Double.MAX_VALUE, Double.MAX_VALUE,
+        Double.MIN_VALUE, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+    };
+
+    @Test
+    public void writesRowsLikeFormatter() throws IOException {
+        DataSeries entries = new DataSeries( 1000 );
+        for ( int i=0; i<1000; i++ ) {
+            entries.add( START + i*60, i*0.37, i%7*0.25, i%100 == 0 ? 250 : 0, i%100 == 0 ? 1 : 0 );
+        }
+        assertEquals( expected( null, entries ), write( null, entries ) );
+    }
+
+    @Test
+    public void writesExtremeAmounts() throws IOException {
+        // Enough rows to fill the buffer many times over with any mix of
+        // long and short amounts in a row
+        DataSeries entries = new DataSeries( 5000 );
+        for ( int i=0; i<5000; i++ ) {
+            entries.add( START + i*60, AMOUNTS[i % AMOUNTS.length], AMOUNTS[i/3 % AMOUNTS.length], AMOUNTS[i/7 % AMOUNTS.length], i );
+        }
+        assertEquals( expected( null, entries ), write( null, entries ) );
+    }
+
+    @Test
+    public void writesLongDeviceIds() throws IOException {
+        DataSeries entries = new DataSeries( 300 );
+        for ( int i=0; i<300; i++ ) {
+            entries.add( START + i*60, 1e292, -Double.MAX_VALUE, i, i );
+        }
+        StringBuilder deviceId = new StringBuilder();
+        while ( deviceId.length() < 10000 ) {
+            deviceId.append( "device-" );
+        }
+        assertEquals( expected( "a", entries ), write( "a", entries ) );
+        assertEquals( expected( deviceId.toString(), entries ), write( deviceId.toString(), entries ) );
+    }
+
+    @Test
+    public void countsBytesWritten() throws IOException {
+        DataSeries entries = new DataSeries( 1000 );
+        for ( int i=0; i<1000; i++ ) {
+            entries.add( START + i*60, AMOUNTS[i % AMOUNTS.length], 0, 0, 0 );
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CsvWriter writer = new CsvWriter( bytes );
+        writer.writeHeader();
+        writer.writeRows( entries );
+        writer.flush();
+        assertEquals( bytes.size(), writer.getBytesWritten() );
+    }
+
+    private static String write( String deviceId, DataSeries entries ) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CsvWriter writer = new CsvWriter( bytes );
+        if ( deviceId == null ) {
+            writer.writeHeader();
+            writer.writeRows( entries );
+        } else {
+            writer.writeHeader( "device," + CsvWriter.HEADER );
+            writer.writeRows( deviceId, entries );
+        }
+        writer.flush();
+        return new String( bytes.toByteArray(), StandardCharsets.UTF_8 );
+    }
+
+    private static String expected( String deviceId, DataSeries entries ) {
+        StringBuilder ret = new StringBuilder();
+        ret.append( deviceId == null ? "" : "device," ).append( CsvWriter.HEADER ).append( '\n' );
+        for ( int i=0; i<entries.size(); i++ ) {
+            if ( deviceId != null ) {
+                ret.append( deviceId ).append( ',' );
+            }
+            ret.append( DateTimeFormatter.ISO_INSTANT.format( Instant.ofEpochSecond( entries.getTimestamp(i) ) ) ).append( ',' );
+            ret.append( String.format( Locale.ROOT, "%.2f,%.2f,%.2f,%d", entries.getAmountRemaining(i), entries.getAmountConsumed(i), 
+                    entries.getAmountAdded(i), entries.getNumRefills(i) ) );
+            ret.append( '\n' );
+        }
+        return ret.toString();
+    }
+
+}
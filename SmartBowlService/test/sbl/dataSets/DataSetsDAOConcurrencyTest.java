@@ -0,0 +1,241 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Adds, reads and clears data sets from several threads at once and checks
+// that every reader sees consistent series: whole entries in timestamp order,
+// no lost entries and rollups that agree with the raw entries. How the ingest
+// throughput scales with the threads, on own devices and on a shared one, is
+// measured by IngestBenchmark in the benchmarks module.
+public class DataSetsDAOConcurrencyTest {
+
+    private static final long START = 1500000000L;
+    private static final int WRITER_COUNT = 4;
+    private static final int READER_COUNT = 2;
+    private static final int ENTRIES_PER_WRITER = 5000;
+    private static final int SHARED_ENTRIES_PER_WRITER = 1000;
+    private static final int BATCH_SIZE = 100;
+
+    private final DataSetsDAO dao = DataSetsDAO.getInstance();
+    private final AtomicBoolean writing = new AtomicBoolean( true );
+    private String prefix;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        // The DAO is shared by all tests, so every test uses its own devices
+        prefix = "stress-" + System.nanoTime() + "-";
+        executor = Executors.newFixedThreadPool( WRITER_COUNT*2 + READER_COUNT*2 + 1 );
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        writing.set( false );
+        executor.shutdownNow();
+        assertTrue( executor.awaitTermination( 1, TimeUnit.MINUTES ) );
+    }
+
+    @Test
+    public void concurrentAddsReadsAndClears() throws Exception {
+        List <Future<?>> writers = new ArrayList<>();
+        for ( int t=0; t<WRITER_COUNT; t++ ) {
+            int writer = t;
+            // One device of its own, and a share of devices all writers add
+            // to. Their entries arrive slightly out of order, which is costly
+            // for the compressed raw series, so there are fewer of them.
+            writers.add( executor.submit( () -> {
+                for ( int i=0; i<ENTRIES_PER_WRITER; i++ ) {
+                    add( device( "own-" + writer ), START + i*60L );
+                    if ( i < SHARED_ENTRIES_PER_WRITER ) {
+                        add( device( "shared" ), START + (i*WRITER_COUNT + writer)*60L );
+                        add( device( "cleared" ), START + (i*WRITER_COUNT + writer)*60L );
+                    }
+                }
+                return null;
+            } ) );
+            // Batches that are sent twice, as by a device that retries
+            writers.add( executor.submit( () -> {
+                for ( int i=0; i<ENTRIES_PER_WRITER; i+=BATCH_SIZE ) {
+                    DataSeries batch = new DataSeries( BATCH_SIZE );
+                    for ( int j=i; j<i+BATCH_SIZE; j++ ) {
+                        long timestamp = START + j*60L;
+                        batch.add( timestamp, amountRemaining( timestamp ), amountConsumed( timestamp ), 0, 0 );
+                    }
+                    IngestResult first = dao.addAllToDataSet( device( "batch-" + writer ), batch );
+                    IngestResult second = dao.addAllToDataSet( device( "batch-" + writer ), batch );
+                    assertEquals( BATCH_SIZE, first.getAccepted() );
+                    assertEquals( 0, second.getAccepted() );
+                    assertEquals( BATCH_SIZE, second.getDuplicates() );
+                }
+                return null;
+            } ) );
+        }
+        Future<?> clearer = executor.submit( () -> {
+            while ( writing.get() ) {
+                dao.clearDataSet( device( "cleared" ) );
+                Thread.sleep( 1 );
+            }
+            return null;
+        } );
+        List <Future<Integer>> readers = new ArrayList<>();
+        for ( int t=0; t<READER_COUNT; t++ ) {
+            int reader = t;
+            readers.add( executor.submit( () -> readSnapshots( reader ) ) );
+            readers.add( executor.submit( () -> follow( device( "own-" + reader % WRITER_COUNT ) ) ) );
+        }
+
+        for ( Future<?> writer : writers ) {
+            writer.get( 5, TimeUnit.MINUTES );
+        }
+        writing.set( false );
+        clearer.get( 1, TimeUnit.MINUTES );
+        for ( Future<Integer> reader : readers ) {
+            assertTrue( reader.get( 1, TimeUnit.MINUTES ) > 0 );
+        }
+
+        // Nothing was lost or added twice
+        for ( int t=0; t<WRITER_COUNT; t++ ) {
+            assertEquals( ENTRIES_PER_WRITER, checkConsistent( dao.getLastRawSeries( device( "own-" + t ), 0 ) ) );
+            assertEquals( ENTRIES_PER_WRITER, checkConsistent( dao.getLastRawSeries( device( "batch-" + t ), 0 ) ) );
+        }
+        DataSeries shared = dao.getLastRawSeries( device( "shared" ), 0 );
+        assertEquals( SHARED_ENTRIES_PER_WRITER*WRITER_COUNT, checkConsistent( shared ) );
+        for ( int i=0; i<shared.size(); i++ ) {
+            assertEquals( START + i*60L, shared.getTimestamp(i) );
+        }
+        assertRollupsAgree( device( "shared" ) );
+        assertRollupsAgree( device( "cleared" ) );
+        assertTrue( dao.getLastRawSeries( device( "cleared" ), 0 ).size() < SHARED_ENTRIES_PER_WRITER*WRITER_COUNT );
+    }
+
+    private String device( String name ) {
+        return prefix + name;
+    }
+
+    private void add( String deviceId, long timestamp ) {
+        dao.addToDataSet( deviceId, timestamp, amountRemaining( timestamp ), amountConsumed( timestamp ), 0, 0 );
+    }
+
+    // The values are derived from the timestamp, so that a reader can tell
+    // whether an entry was put together from different writes
+    private static double amountRemaining( long timestamp ) {
+        return timestamp % 1000;
+    }
+
+    private static double amountConsumed( long timestamp ) {
+        return timestamp / 60 % 8 * 0.25;
+    }
+
+    // Readers pause between rounds like real clients, so that they do not
+    // starve the writers on a machine with few cores
+    private int readSnapshots( int reader ) throws InterruptedException {
+        String[] names = { "shared", "cleared", "own-" + reader % WRITER_COUNT, "batch-" + reader % WRITER_COUNT };
+        int reads = 0;
+        while ( writing.get() ) {
+            for ( String name : names ) {
+                if ( reads % 20 == 0 ) {
+                    checkConsistent( dao.getLastRawSeries( device( name ), 0 ) );
+                }
+                checkConsistent( dao.getLastRawSeries( device( name ), 500 ) );
+                checkConsistent( dao.getRawSeries( device( name ), START + 3600, START + 7200 ) );
+                checkOrdered( dao.getSeries( device( name ), Resolution.HOUR, Long.MIN_VALUE, Long.MAX_VALUE ) );
+                reads++;
+            }
+            Thread.sleep( 1 );
+        }
+        return reads;
+    }
+
+    // Polls a device that only gets entries in timestamp order, the way a
+    // dashboard does, and checks that every entry is seen exactly once
+    private int follow( String deviceId ) throws InterruptedException {
+        long cursor = 0;
+        long lastTimestamp = Long.MIN_VALUE;
+        int seen = 0;
+        while ( true ) {
+            boolean done = !writing.get();
+            EntriesSince since = dao.getRawSeriesSince( deviceId, cursor );
+            assertFalse( since.isExpired() );
+            DataSeries entries = since.getEntries();
+            checkConsistent( entries );
+            if ( entries.size() > 0 ) {
+                assertTrue( entries.getTimestamp(0) > lastTimestamp );
+                lastTimestamp = entries.getTimestamp( entries.size()-1 );
+            }
+            seen += entries.size();
+            cursor = since.getCursor();
+            if ( done ) break;
+            Thread.sleep( 1 );
+        }
+        assertEquals( ENTRIES_PER_WRITER, seen );
+        return seen;
+    }
+
+    private static int checkConsistent( DataSeries entries ) {
+        checkOrdered( entries );
+        for ( int i=0; i<entries.size(); i++ ) {
+            long timestamp = entries.getTimestamp(i);
+            assertEquals( amountRemaining( timestamp ), entries.getAmountRemaining(i), 0 );
+            assertEquals( amountConsumed( timestamp ), entries.getAmountConsumed(i), 0 );
+        }
+        return entries.size();
+    }
+
+    private static void checkOrdered( DataSeries entries ) {
+        for ( int i=1; i<entries.size(); i++ ) {
+            assertTrue( entries.getTimestamp(i-1) < entries.getTimestamp(i) );
+        }
+    }
+
+    private void assertRollupsAgree( String deviceId ) {
+        DataSeries raw = dao.getLastRawSeries( deviceId, 0 );
+        DataSeries hours = dao.getSeries( deviceId, Resolution.HOUR, Long.MIN_VALUE, Long.MAX_VALUE );
+        double rawTotal = 0;
+        for ( int i=0; i<raw.size(); i++ ) {
+            rawTotal += raw.getAmountConsumed(i);
+        }
+        double hourTotal = 0;
+        for ( int i=0; i<hours.size(); i++ ) {
+            hourTotal += hours.getAmountConsumed(i);
+        }
+        assertEquals( rawTotal, hourTotal, 1e-6 );
+    }
+
+}
@@ -0,0 +1,304 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Checks RawSeries against a plain sorted list of the entries it should keep.
+// Whenever the series drops entries to make room, the model drops as many of
+// its oldest ones.
+public class RawSeriesTest {
+
+    private static final long START = 1500000000L;
+    private static final int COMPRESSED_CAPACITY = 16*RawSeries.BLOCK_SIZE;
+
+    private static final double[] EXTREME_AMOUNTS = {
+        0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, -Double.MIN_VALUE,
+        Double.MAX_VALUE, -Double.MAX_VALUE, Double.longBitsToDouble( 0x7ff8000000000001L ), 1e-300, 123.45, 123.46
+    };
+
+    private static final long[] EXTREME_TIMESTAMPS = {
+        Long.MIN_VALUE, Long.MIN_VALUE + 1, -1L << 40, -1, 0, 1, 1L << 40, Long.MAX_VALUE - 1, Long.MAX_VALUE
+    };
+
+    @Test
+    public void keepsInOrderAndLateEntries() {
+        Random random = new Random( 42 );
+        Model model = new Model( new RawSeries( COMPRESSED_CAPACITY ) );
+        long timestamp = START;
+        for ( int batch=0; batch<1000; batch++ ) {
+            int batchSize = 1 + random.nextInt( 60 );
+            for ( int i=0; i<batchSize; i++ ) {
+                timestamp += 55 + random.nextInt( 10 );
+                // Some entries are late, by up to a couple of blocks, and some
+                // are uploaded again
+                if ( random.nextInt( 10 ) == 0 ) {
+                    model.add( timestamp - random.nextInt( 2*RawSeries.BLOCK_SIZE*60 ), random );
+                } else if ( random.nextInt( 20 ) == 0 && model.size() > 0 ) {
+                    model.addAgain( random.nextInt( model.size() ) );
+                } else {
+                    model.add( timestamp, random );
+                }
+            }
+            model.series.flush();
+            if ( batch % 10 == 0 ) {
+                model.check( random );
+            }
+        }
+        model.check( random );
+        assertTrue( model.series.getBlockCount() > 1 );
+        assertTrue( model.series.getLastEvictedTimestamp() > START );
+        assertTrue( model.series.size() <= COMPRESSED_CAPACITY );
+        assertTrue( model.series.size() > COMPRESSED_CAPACITY - 2*RawSeries.BLOCK_SIZE );
+    }
+
+    @Test
+    public void findsLateEntriesBeforeTheStartOfTheirBlock() {
+        Random random = new Random( 11 );
+        Model model = new Model( new RawSeries( COMPRESSED_CAPACITY ) );
+        for ( int i=0; i<3*RawSeries.BLOCK_SIZE; i++ ) {
+            model.add( START + i*60, random );
+        }
+        model.series.flush();
+        // Between the first two blocks, so it goes to the start of the second
+        // one; uploading it again in the same write has to find it there
+        long timestamp = START + RawSeries.BLOCK_SIZE*60 - 30;
+        model.add( timestamp, 1, 2, 3, 0 );
+        model.add( timestamp, 1, 2, 3, 0 );
+        model.series.flush();
+        assertTrue( model.series.contains( timestamp, 1, 2, 3, 0 ) );
+        model.series.flush();
+        model.check( random );
+    }
+
+    @Test
+    public void overwritesOldestEntriesOfSmallSeries() {
+        Random random = new Random( 7 );
+        Model model = new Model( new RawSeries( 500 ) );
+        long timestamp = START;
+        for ( int i=0; i<3000; i++ ) {
+            timestamp += 60;
+            model.add( random.nextInt( 10 ) == 0 ? timestamp - random.nextInt( 20000 ) : timestamp, random );
+            model.series.flush();
+            if ( i % 100 == 0 ) {
+                model.check( random );
+            }
+        }
+        model.check( random );
+        assertEquals( 0, model.series.getBlockCount() );
+        assertEquals( 500, model.series.size() );
+    }
+
+    @Test
+    public void keepsExtremeValues() {
+        Random random = new Random( 3 );
+        Model model = new Model( new RawSeries( COMPRESSED_CAPACITY ) );
+        // Gaps of any size between sorted extreme timestamps, then late
+        // entries into the sealed blocks
+        long[] timestamps = new long[ 3*RawSeries.BLOCK_SIZE ];
+        for ( int i=0; i<timestamps.length; i++ ) {
+            timestamps[i] = i < EXTREME_TIMESTAMPS.length*8 ? EXTREME_TIMESTAMPS[ i/8 ] : random.nextLong();
+        }
+        Arrays.sort( timestamps );
+        for ( int i=0; i<timestamps.length; i++ ) {
+            model.add( timestamps[i], extreme( random ), extreme( random ), extreme( random ), random.nextInt( 3 ) == 0 ? random.nextInt() : 0 );
+        }
+        model.series.flush();
+        model.check( random );
+        for ( int i=0; i<200; i++ ) {
+            long timestamp = i % 2 == 0 ? EXTREME_TIMESTAMPS[ random.nextInt( EXTREME_TIMESTAMPS.length ) ] : random.nextLong();
+            model.add( timestamp, extreme( random ), extreme( random ), extreme( random ), random.nextInt() );
+            if ( i % 7 == 0 ) {
+                model.series.flush();
+            }
+        }
+        model.series.flush();
+        model.check( random );
+        for ( long timestamp : EXTREME_TIMESTAMPS ) {
+            model.checkRange( timestamp, Long.MAX_VALUE );
+            model.checkRange( Long.MIN_VALUE, timestamp );
+        }
+    }
+
+    private static double extreme( Random random ) {
+        return EXTREME_AMOUNTS[ random.nextInt( EXTREME_AMOUNTS.length ) ];
+    }
+
+    private static final class Entry {
+
+        final long timestamp;
+        final double amountRemaining;
+        final double amountConsumed;
+        final double amountAdded;
+        final int refills;
+        final long sequence;
+
+        Entry( long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int refills, long sequence ) {
+            this.timestamp = timestamp;
+            this.amountRemaining = amountRemaining;
+            this.amountConsumed = amountConsumed;
+            this.amountAdded = amountAdded;
+            this.refills = refills;
+            this.sequence = sequence;
+        }
+
+        // Like RawSeries.contains, which compares the amounts with ==
+        boolean sameValues( long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int refills ) {
+            return this.timestamp == timestamp && this.amountRemaining == amountRemaining && this.amountConsumed == amountConsumed
+                && this.amountAdded == amountAdded && this.refills == refills;
+        }
+
+    }
+
+    private static final class Model {
+
+        final RawSeries series;
+        final List <Entry> entries = new ArrayList<>();
+        long sequence;
+        int refills;
+        double amount = 500;
+
+        Model( RawSeries series ) {
+            this.series = series;
+        }
+
+        int size() {
+            return entries.size();
+        }
+
+        void add( long timestamp, Random random ) {
+            if ( random.nextInt( 50 ) == 0 ) {
+                refills++;
+                amount = 500;
+            }
+            amount -= random.nextInt( 500 )/100.0;
+            add( timestamp, amount, random.nextInt( 100 )/100.0, random.nextInt( 50 ) == 0 ? 250 : 0, refills );
+        }
+
+        // Adds an entry equal to a kept one, which is only stored if the
+        // series does not find it, like DataSet.addAll does
+        void addAgain( int i ) {
+            Entry e = entries.get(i);
+            add( e.timestamp, e.amountRemaining, e.amountConsumed, e.amountAdded, e.refills );
+        }
+
+        void add( long timestamp, double amountRemaining, double amountConsumed, double amountAdded, int refills ) {
+            boolean stored = false;
+            for ( Entry e : entries ) {
+                stored |= e.sameValues( timestamp, amountRemaining, amountConsumed, amountAdded, refills );
+            }
+            assertEquals( stored, series.contains( timestamp, amountRemaining, amountConsumed, amountAdded, refills ) );
+            if ( stored || series.isEvicted( timestamp ) ) return;
+            Entry entry = new Entry( timestamp, amountRemaining, amountConsumed, amountAdded, refills, ++sequence );
+            entries.add( upperBound( timestamp ), entry );
+            series.add( timestamp, amountRemaining, amountConsumed, amountAdded, refills, entry.sequence );
+            int dropped = entries.size() - series.size();
+            assertTrue( dropped >= 0 );
+            if ( dropped > 0 ) {
+                long lastDropped = entries.get( dropped-1 ).timestamp;
+                entries.subList( 0, dropped ).clear();
+                assertEquals( lastDropped, series.getLastEvictedTimestamp() );
+            }
+        }
+
+        void check( Random random ) {
+            assertEntries( entries, series.copyLast( 0 ) );
+            for ( int count : new int[] { 1, 2, RawSeries.BLOCK_SIZE, RawSeries.BLOCK_SIZE+1, 1 + random.nextInt( entries.size() + 10 ) } ) {
+                assertEntries( entries.subList( Math.max( 0, entries.size() - count ), entries.size() ), series.copyLast( count ) );
+            }
+            for ( int i=0; i<5 && !entries.isEmpty(); i++ ) {
+                long from = entries.get( random.nextInt( entries.size() ) ).timestamp;
+                long to = entries.get( random.nextInt( entries.size() ) ).timestamp;
+                checkRange( Math.min( from, to ), Math.max( from, to ) );
+                checkRange( from, from+1 );
+                long since = entries.get( random.nextInt( entries.size() ) ).sequence - random.nextInt( 100 );
+                List <Entry> expected = new ArrayList<>();
+                for ( Entry e : entries ) {
+                    if ( e.sequence > since ) {
+                        expected.add( e );
+                    }
+                }
+                assertEntries( expected, series.copySince( since ) );
+            }
+            assertEntries( entries, series.copy().copyLast( 0 ) );
+            if ( !entries.isEmpty() ) {
+                assertEquals( entries.get(0).timestamp, series.getFirstTimestamp() );
+                Entry e = entries.get( random.nextInt( entries.size() ) );
+                assertTrue( series.contains( e.timestamp, e.amountRemaining, e.amountConsumed, e.amountAdded, e.refills ) == !Double.isNaN( e.amountRemaining + e.amountConsumed + e.amountAdded ) );
+                assertFalse( series.contains( e.timestamp, e.amountRemaining, e.amountConsumed, e.amountAdded, e.refills+1 ) 
+                    && entries.stream().noneMatch( o -> o.sameValues( e.timestamp, e.amountRemaining, e.amountConsumed, e.amountAdded, e.refills+1 ) ) );
+                series.flush();
+            }
+        }
+
+        void checkRange( long from, long to ) {
+            List <Entry> expected = new ArrayList<>();
+            for ( Entry e : entries ) {
+                if ( e.timestamp >= from && e.timestamp < to ) {
+                    expected.add( e );
+                }
+            }
+            assertEntries( expected, series.copy( from, to ) );
+        }
+
+        private int upperBound( long timestamp ) {
+            int low = 0;
+            int high = entries.size();
+            while ( low < high ) {
+                int mid = (low + high) >>> 1;
+                if ( entries.get(mid).timestamp <= timestamp ) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+    }
+
+    // Compares the amounts bit for bit, so -0.0 and NaN payloads count
+    private static void assertEntries( List<Entry> expected, DataSeries actual ) {
+        assertEquals( expected.size(), actual.size() );
+        for ( int i=0; i<actual.size(); i++ ) {
+            Entry e = expected.get(i);
+            String at = "entry " + i;
+            assertEquals( at, e.timestamp, actual.getTimestamp(i) );
+            assertEquals( at, Double.doubleToRawLongBits( e.amountRemaining ), Double.doubleToRawLongBits( actual.getAmountRemaining(i) ) );
+            assertEquals( at, Double.doubleToRawLongBits( e.amountConsumed ), Double.doubleToRawLongBits( actual.getAmountConsumed(i) ) );
+            assertEquals( at, Double.doubleToRawLongBits( e.amountAdded ), Double.doubleToRawLongBits( actual.getAmountAdded(i) ) );
+            assertEquals( at, e.refills, actual.getNumRefills(i) );
+            assertEquals( at, e.sequence, actual.getSequence(i) );
+        }
+    }
+
+}
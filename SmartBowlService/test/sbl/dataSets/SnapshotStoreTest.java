@@ -0,0 +1,226 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.dataSets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class SnapshotStoreTest {
+
+    private static final long START = 1500000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void loadsWhatWasWritten() throws IOException {
+        SnapshotStore store = new SnapshotStore( folder.getRoot() );
+        List <DataSet> dataSets = new ArrayList<>();
+        for ( int i=0; i<50; i++ ) {
+            dataSets.add( newDataSet( "device-" + i, i*100 ) );
+        }
+        store.write( 1234, dataSets );
+
+        Map <String, DataSet> loaded = new ConcurrentHashMap<>();
+        assertEquals( 1234, store.load( store.getLatestFile(), id -> loaded.computeIfAbsent( id, SnapshotStoreTest::emptyDataSet ) ) );
+        assertEquals( dataSets.size(), loaded.size() );
+        for ( DataSet dataSet : dataSets ) {
+            assertSameContent( dataSet, loaded.get( dataSet.getDeviceId() ) );
+        }
+    }
+
+    @Test
+    public void keepsThePreviousSnapshot() throws IOException {
+        SnapshotStore store = new SnapshotStore( folder.getRoot() );
+        store.write( 1, singletonList( newDataSet( "a", 10 ) ) );
+        store.write( 2, singletonList( newDataSet( "a", 20 ) ) );
+        assertEquals( 2, store.readStartSequence( store.getLatestFile() ) );
+        assertEquals( 1, store.readStartSequence( store.getPreviousFile() ) );
+    }
+
+    @Test
+    public void rejectsDamagedSnapshot() throws IOException {
+        SnapshotStore store = new SnapshotStore( folder.getRoot() );
+        store.write( 1, singletonList( newDataSet( "a", 1000 ) ) );
+        File file = store.getLatestFile();
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) ) {
+            raf.seek( raf.length() - 100 );
+            int b = raf.read();
+            raf.seek( raf.length() - 100 );
+            raf.write( b ^ 0xff );
+        }
+        try {
+            store.verify( file );
+            fail( "Damage not detected by verify()" );
+        } catch ( IOException expected ) {
+        }
+        try {
+            store.load( file, SnapshotStoreTest::emptyDataSet );
+            fail( "Damage not detected by load()" );
+        } catch ( IOException expected ) {
+        }
+        store.quarantine( file );
+        assertFalse( file.exists() );
+        assertTrue( new File( folder.getRoot(), file.getName() + ".bad" ).exists() );
+    }
+
+    @Test
+    public void rejectsTruncatedSnapshot() throws IOException {
+        SnapshotStore store = new SnapshotStore( folder.getRoot() );
+        store.write( 1, singletonList( newDataSet( "a", 1000 ) ) );
+        File file = store.getLatestFile();
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) ) {
+            raf.setLength( raf.length() - 10 );
+        }
+        try {
+            store.load( file, SnapshotStoreTest::emptyDataSet );
+            fail( "Truncation not detected" );
+        } catch ( IOException expected ) {
+        }
+    }
+
+    // The first data set is padded to almost 2 GB, so the second one starts
+    // past the reach of an int offset and of a single mapping. The padding is
+    // left unwritten, so the file only takes that much space where the file
+    // system does not support sparse files.
+    @Test
+    public void loadsSnapshotLargerThan2GB() throws IOException {
+        assumeTrue( folder.getRoot().getUsableSpace() > (3L << 30) );
+        DataSet first = newDataSet( "first", 500 );
+        DataSet second = newDataSet( "second", 700 );
+        byte[] firstPayload = payload( first );
+        byte[] secondPayload = payload( second );
+        int firstLength = Integer.MAX_VALUE - 1024;
+
+        CRC32 firstCrc = new CRC32();
+        firstCrc.update( firstPayload );
+        byte[] zeros = new byte[1 << 20];
+        for ( long remaining=firstLength-firstPayload.length; remaining>0; remaining-=zeros.length ) {
+            firstCrc.update( zeros, 0, (int) Math.min( remaining, zeros.length ) );
+        }
+
+        SnapshotStore store = new SnapshotStore( folder.getRoot() );
+        File file = store.getLatestFile();
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) ) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream headerOut = new DataOutputStream( header );
+            headerOut.writeInt( SnapshotStore.MAGIC );
+            headerOut.writeInt( SnapshotStore.VERSION );
+            headerOut.writeLong( 77 );
+            headerOut.writeLong( System.currentTimeMillis() );
+            headerOut.writeInt( 2 );
+            raf.write( header.toByteArray() );
+            raf.writeInt( crc( header.toByteArray() ) );
+            raf.writeInt( firstLength );
+            raf.writeInt( (int) firstCrc.getValue() );
+            raf.write( firstPayload );
+            long secondPosition = SnapshotStore.HEADER_SIZE + 4 + 8 + (long) firstLength;
+            raf.seek( secondPosition );
+            raf.writeInt( secondPayload.length );
+            raf.writeInt( crc( secondPayload ) );
+            raf.write( secondPayload );
+            assertTrue( raf.length() > Integer.MAX_VALUE );
+        }
+
+        store.verify( file );
+        Map <String, DataSet> loaded = new ConcurrentHashMap<>();
+        assertEquals( 77, store.load( file, id -> loaded.computeIfAbsent( id, SnapshotStoreTest::emptyDataSet ) ) );
+        assertSameContent( first, loaded.get( "first" ) );
+        assertSameContent( second, loaded.get( "second" ) );
+    }
+
+    private static DataSet newDataSet( String deviceId, int entryCount ) {
+        DataSet ret = emptyDataSet( deviceId );
+        for ( int i=0; i<entryCount; i++ ) {
+            ret.add( START + i*60, 500 - i%500, i%7*0.25, i%100 == 0 ? 250 : 0, i%100 == 0 ? 1 : 0 );
+        }
+        return ret;
+    }
+
+    private static DataSet emptyDataSet( String deviceId ) {
+        return new DataSet( deviceId, null, null, 100000, 10000, 1000, 100 );
+    }
+
+    private static List<DataSet> singletonList( DataSet dataSet ) {
+        List <DataSet> ret = new ArrayList<>();
+        ret.add( dataSet );
+        return ret;
+    }
+
+    // The same as SnapshotStore writes for a data set
+    private static byte[] payload( DataSet dataSet ) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+        byte[] deviceId = dataSet.getDeviceId().getBytes( StandardCharsets.UTF_8 );
+        out.writeShort( deviceId.length );
+        out.write( deviceId );
+        dataSet.copy().writeTo( out );
+        return bytes.toByteArray();
+    }
+
+    private static int crc( byte[] bytes ) {
+        CRC32 crc = new CRC32();
+        crc.update( bytes );
+        return (int) crc.getValue();
+    }
+
+    private static void assertSameContent( DataSet expected, DataSet actual ) {
+        assertNotNull( actual );
+        assertEquals( expected.getLastSequence(), actual.getLastSequence() );
+        assertSameEntries( expected.getRawEntries(), actual.getRawEntries() );
+        for ( Resolution resolution : new Resolution[] { Resolution.MINUTE, Resolution.HOUR, Resolution.DAY } ) {
+            assertSameEntries( expected.getEntries( resolution, Long.MIN_VALUE, Long.MAX_VALUE ), actual.getEntries( resolution, Long.MIN_VALUE, Long.MAX_VALUE ) );
+        }
+    }
+
+    static void assertSameEntries( DataSeries expected, DataSeries actual ) {
+        assertEquals( expected.size(), actual.size() );
+        for ( int i=0; i<expected.size(); i++ ) {
+            assertEquals( expected.getTimestamp(i), actual.getTimestamp(i) );
+            assertEquals( expected.getAmountRemaining(i), actual.getAmountRemaining(i), 0 );
+            assertEquals( expected.getAmountConsumed(i), actual.getAmountConsumed(i), 0 );
+            assertEquals( expected.getAmountAdded(i), actual.getAmountAdded(i), 0 );
+            assertEquals( expected.getNumRefills(i), actual.getNumRefills(i) );
+            assertEquals( expected.getSequence(i), actual.getSequence(i) );
+        }
+    }
+
+}
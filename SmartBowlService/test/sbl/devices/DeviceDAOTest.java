@@ -0,0 +1,106 @@
+/*
+
+MIT License
+
+Copyright (c) 2017 Grzegorz Hołdys
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+
+package sbl.devices;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class DeviceDAOTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void loadsWhatWasSaved() {
+        DeviceDAO dao = new DeviceDAO( folder.getRoot() );
+        dao.addDevice( new Device( "bowl-1", "Kitchen", "Europe/Warsaw", 250 ) );
+        dao.addDevice( new Device( "bowl-2", null, null, 100 ) );
+        DeviceDAO loaded = new DeviceDAO( folder.getRoot() );
+        assertEquals( "Kitchen", loaded.getDevice( "bowl-1" ).getDisplayName() );
+        assertEquals( "Europe/Warsaw", loaded.getDevice( "bowl-1" ).getTimeZone() );
+        assertEquals( 100, loaded.getDevice( "bowl-2" ).getDailyRation() );
+        assertNull( loaded.getDevice( "bowl-2" ).getDisplayName() );
+    }
+
+    @Test
+    public void loadsPreviousStoreIfStoreIsCorrupt() throws IOException {
+        DeviceDAO dao = new DeviceDAO( folder.getRoot() );
+        dao.addDevice( new Device( "bowl-1", "Kitchen", null, 250 ) );
+        dao.addDevice( new Device( "bowl-2", "Hall", null, 100 ) );
+        File store = new File( folder.getRoot(), "devices.dat" );
+        try ( RandomAccessFile file = new RandomAccessFile( store, "rw" ) ) {
+            file.seek( 10 );
+            file.write( 0xff );
+        }
+        DeviceDAO loaded = new DeviceDAO( folder.getRoot() );
+        assertTrue( loaded.containsDevice( "bowl-1" ) );
+        assertFalse( loaded.containsDevice( "bowl-2" ) );
+        assertFalse( store.exists() );
+        assertTrue( new File( folder.getRoot(), "devices.dat.bad" ).isFile() );
+    }
+
+    @Test
+    public void startsEmptyIfNothingCanBeLoaded() throws IOException {
+        DeviceDAO dao = new DeviceDAO( folder.getRoot() );
+        dao.addDevice( new Device( "bowl-1", "Kitchen", null, 250 ) );
+        dao.addDevice( new Device( "bowl-2", "Hall", null, 100 ) );
+        // Truncated store and a previous one of an unknown version
+        File store = new File( folder.getRoot(), "devices.dat" );
+        try ( RandomAccessFile file = new RandomAccessFile( store, "rw" ) ) {
+            file.setLength( file.length() - 3 );
+        }
+        File previous = new File( folder.getRoot(), "devices.prev" );
+        try ( RandomAccessFile file = new RandomAccessFile( previous, "rw" ) ) {
+            file.writeInt( 99 );
+        }
+        DeviceDAO loaded = new DeviceDAO( folder.getRoot() );
+        assertFalse( loaded.containsDevice( "bowl-1" ) );
+        assertFalse( loaded.containsDevice( "bowl-2" ) );
+        assertTrue( new File( folder.getRoot(), "devices.dat.bad" ).isFile() );
+        assertTrue( new File( folder.getRoot(), "devices.prev.bad" ).isFile() );
+        // And saves again from scratch
+        loaded.addDevice( new Device( "bowl-3", "Porch", null, 50 ) );
+        assertTrue( new DeviceDAO( folder.getRoot() ).containsDevice( "bowl-3" ) );
+    }
+
+    @Test
+    public void loadsPreviousStoreIfStoreIsMissing() throws IOException {
+        DeviceDAO dao = new DeviceDAO( folder.getRoot() );
+        dao.addDevice( new Device( "bowl-1", "Kitchen", null, 250 ) );
+        dao.addDevice( new Device( "bowl-2", "Hall", null, 100 ) );
+        // As if stopped between moving the store aside and replacing it
+        Files.delete( new File( folder.getRoot(), "devices.dat" ).toPath() );
+        assertTrue( new DeviceDAO( folder.getRoot() ).containsDevice( "bowl-1" ) );
+    }
+
+}